@@ -0,0 +1,216 @@
+package communicationmod.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Synthetic stand-ins for the game objects that GameStateConverter reads, filled from a game state recorded in
+ * combat. The classes only hold the values the converter writes, so the benchmarks run without the game's jar.
+ */
+class Fixtures {
+
+    static final String COMBAT_STATE_RESOURCE = "/combat_state.json";
+
+    static class Card {
+        String name;
+        String uuid;
+        int misc;
+        boolean isPlayable;
+        int cost;
+        int upgrades;
+        String id;
+        String type;
+        String rarity;
+        boolean hasTarget;
+        boolean exhausts;
+        boolean ethereal;
+    }
+
+    // The optional fields have names that StateJson.PowerFields looks for, so they are read the same way as the game's
+    static class Power {
+        String id;
+        String name;
+        int amount;
+        Integer damage;
+        Card card;
+        Integer storedAmount;
+        Boolean justApplied;
+    }
+
+    static class Monster {
+        String id;
+        String name;
+        int currentHp;
+        int maxHp;
+        String intent;
+        int moveId;
+        int moveBaseDamage;
+        int moveAdjustedDamage;
+        int moveHits;
+        boolean halfDead;
+        boolean isGone;
+        int block;
+        List<Power> powers = new ArrayList<>();
+    }
+
+    static class MapNode {
+        int x;
+        int y;
+        String symbol;
+        // Four values per edge, in and out of the node, as passed to StateJson.writeMapNode()
+        int[] edges;
+    }
+
+    /**
+     * @return The recorded game state, as sent by the mod
+     */
+    static String loadCombatState() {
+        try (InputStream stream = Fixtures.class.getResourceAsStream(COMBAT_STATE_RESOURCE);
+             Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+            StringBuilder builder = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                builder.append(buffer, 0, read);
+            }
+            return builder.toString().trim();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not load " + COMBAT_STATE_RESOURCE, e);
+        }
+    }
+
+    static JsonObject loadGameState() {
+        return JsonParser.parseString(loadCombatState()).getAsJsonObject().getAsJsonObject("game_state");
+    }
+
+    /**
+     * @return Every card in the recorded deck and combat piles, in the order the converter writes them
+     */
+    static List<Card> loadCards() {
+        JsonObject gameState = loadGameState();
+        JsonObject combat = gameState.getAsJsonObject("combat_state");
+        List<Card> cards = new ArrayList<>();
+        addCards(cards, gameState.getAsJsonArray("deck"));
+        for (String pile : new String[]{"draw_pile", "discard_pile", "exhaust_pile", "hand", "limbo"}) {
+            addCards(cards, combat.getAsJsonArray(pile));
+        }
+        return cards;
+    }
+
+    /**
+     * The recorded fight has a single monster without powers, so it is repeated and given a spread of powers like
+     * those in a late-game fight.
+     * @param count The number of monsters to create
+     * @param powersPerMonster The number of powers to give each monster
+     */
+    static List<Monster> createMonsters(int count, int powersPerMonster) {
+        JsonObject recorded = loadGameState().getAsJsonObject("combat_state")
+                .getAsJsonArray("monsters").get(0).getAsJsonObject();
+        Card nightmareCard = loadCards().get(0);
+        List<Monster> monsters = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Monster monster = new Monster();
+            monster.id = recorded.get("id").getAsString();
+            monster.name = recorded.get("name").getAsString();
+            monster.currentHp = recorded.get("current_hp").getAsInt();
+            monster.maxHp = recorded.get("max_hp").getAsInt();
+            monster.intent = recorded.get("intent").getAsString();
+            monster.moveId = recorded.get("move_id").getAsInt();
+            monster.moveBaseDamage = recorded.get("move_base_damage").getAsInt();
+            monster.moveAdjustedDamage = recorded.get("move_adjusted_damage").getAsInt();
+            monster.moveHits = recorded.get("move_hits").getAsInt();
+            monster.halfDead = recorded.get("half_dead").getAsBoolean();
+            monster.isGone = recorded.get("is_gone").getAsBoolean();
+            monster.block = recorded.get("block").getAsInt();
+            for (int j = 0; j < powersPerMonster; j++) {
+                Power power = new Power();
+                power.id = "Power" + j;
+                power.name = "Power " + j;
+                power.amount = j + 1;
+                switch (j % 4) {
+                    case 0:
+                        power.justApplied = true;
+                        break;
+                    case 1:
+                        power.storedAmount = 3;
+                        break;
+                    case 2:
+                        power.damage = 5;
+                        break;
+                    default:
+                        power.card = nightmareCard;
+                }
+                monster.powers.add(power);
+            }
+            monsters.add(monster);
+        }
+        return monsters;
+    }
+
+    /**
+     * The recorded map only lists the children of each node, so the edges into each node are added from the children
+     * of the others, to give the nodes parents as well.
+     */
+    static List<MapNode> loadMap() {
+        JsonArray json = loadGameState().getAsJsonArray("map");
+        List<int[]> links = new ArrayList<>();
+        for (JsonElement element : json) {
+            JsonObject node = element.getAsJsonObject();
+            for (JsonElement child : node.getAsJsonArray("children")) {
+                JsonObject coordinates = child.getAsJsonObject();
+                links.add(new int[]{node.get("x").getAsInt(), node.get("y").getAsInt(),
+                        coordinates.get("x").getAsInt(), coordinates.get("y").getAsInt()});
+            }
+        }
+        List<MapNode> nodes = new ArrayList<>();
+        for (JsonElement element : json) {
+            JsonObject jsonNode = element.getAsJsonObject();
+            MapNode node = new MapNode();
+            node.x = jsonNode.get("x").getAsInt();
+            node.y = jsonNode.get("y").getAsInt();
+            node.symbol = jsonNode.get("symbol").getAsString();
+            List<int[]> edges = new ArrayList<>();
+            for (int[] link : links) {
+                if ((link[0] == node.x && link[1] == node.y) || (link[2] == node.x && link[3] == node.y)) {
+                    edges.add(link);
+                }
+            }
+            node.edges = new int[edges.size() * 4];
+            for (int i = 0; i < edges.size(); i++) {
+                System.arraycopy(edges.get(i), 0, node.edges, i * 4, 4);
+            }
+            nodes.add(node);
+        }
+        return nodes;
+    }
+
+    private static void addCards(List<Card> cards, JsonArray json) {
+        for (JsonElement element : json) {
+            JsonObject jsonCard = element.getAsJsonObject();
+            Card card = new Card();
+            card.name = jsonCard.get("name").getAsString();
+            card.uuid = jsonCard.get("uuid").getAsString();
+            card.misc = jsonCard.has("misc") ? jsonCard.get("misc").getAsInt() : 0;
+            card.isPlayable = jsonCard.get("is_playable").getAsBoolean();
+            card.cost = jsonCard.get("cost").getAsInt();
+            card.upgrades = jsonCard.get("upgrades").getAsInt();
+            card.id = jsonCard.get("id").getAsString();
+            card.type = jsonCard.get("type").getAsString();
+            card.rarity = jsonCard.get("rarity").getAsString();
+            card.hasTarget = jsonCard.get("has_target").getAsBoolean();
+            card.exhausts = jsonCard.get("exhausts").getAsBoolean();
+            card.ethereal = jsonCard.get("ethereal").getAsBoolean();
+            cards.add(card);
+        }
+    }
+}
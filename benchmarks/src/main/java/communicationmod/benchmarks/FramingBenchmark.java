@@ -0,0 +1,167 @@
+package communicationmod.benchmarks;
+
+import communicationmod.DataReader;
+import communicationmod.DataWriter;
+import communicationmod.OutgoingMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the framing throughput of the transport. Reading compares DataReader with reading one byte at a time,
+ * which is how messages used to be read, and newline framing with length-prefixed framing. All of them read from
+ * memory, which understates the difference on a pipe or socket, where every read is a system call. Writing measures
+ * the hand-off through DataWriter's queue and thread to an output stream that discards what it is given, per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+    private static final int MESSAGES = 100;
+
+    @Param({"16", "10000"})
+    public int messageSize;
+
+    private byte[] input;
+    private ByteArrayInputStream bufferedInput;
+    private DataReader reader;
+    private ByteArrayInputStream prefixedInput;
+    private DataReader prefixedReader;
+    private String message;
+    private OutgoingMessage outgoingMessage;
+    private BlockingQueue<OutgoingMessage> writeQueue;
+    private CountingOutputStream output;
+    private Thread writeThread;
+
+    @Setup
+    public void setUp() {
+        char[] characters = new char[messageSize];
+        Arrays.fill(characters, 'x');
+        message = new String(characters);
+        outgoingMessage = OutgoingMessage.of(message);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < MESSAGES; i++) {
+            bytes.write(messageBytes, 0, messageBytes.length);
+            bytes.write('\n');
+        }
+        input = bytes.toByteArray();
+        // The reader keeps its buffer between reads, so it is created once and its input is rewound instead.
+        bufferedInput = new ByteArrayInputStream(input);
+        reader = new DataReader(null, bufferedInput, false);
+        ByteArrayOutputStream prefixedBytes = new ByteArrayOutputStream();
+        for (int i = 0; i < MESSAGES; i++) {
+            prefixedBytes.write(messageBytes.length >>> 24);
+            prefixedBytes.write(messageBytes.length >>> 16);
+            prefixedBytes.write(messageBytes.length >>> 8);
+            prefixedBytes.write(messageBytes.length);
+            prefixedBytes.write(messageBytes, 0, messageBytes.length);
+        }
+        prefixedInput = new ByteArrayInputStream(prefixedBytes.toByteArray());
+        prefixedReader = new DataReader(null, prefixedInput, false);
+        prefixedReader.useLengthPrefixedFraming();
+    }
+
+    @Setup(Level.Iteration)
+    public void startWriter() {
+        writeQueue = new LinkedBlockingQueue<>();
+        output = new CountingOutputStream();
+        writeThread = new Thread(new DataWriter(writeQueue, output, false));
+        writeThread.setDaemon(true);
+        writeThread.start();
+    }
+
+    @TearDown(Level.Iteration)
+    public void stopWriter() throws InterruptedException {
+        writeThread.interrupt();
+        writeThread.join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void readBuffered(Blackhole blackhole) throws IOException {
+        bufferedInput.reset();
+        for (int i = 0; i < MESSAGES; i++) {
+            blackhole.consume(reader.readMessage());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void readLengthPrefixed(Blackhole blackhole) throws IOException {
+        prefixedInput.reset();
+        for (int i = 0; i < MESSAGES; i++) {
+            blackhole.consume(prefixedReader.readMessage());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void readByteAtATime(Blackhole blackhole) throws IOException {
+        InputStream stream = new ByteArrayInputStream(input);
+        ByteArrayOutputStream current = new ByteArrayOutputStream();
+        int next;
+        while ((next = stream.read()) != -1) {
+            if (next == '\n') {
+                blackhole.consume(new String(current.toByteArray(), StandardCharsets.UTF_8));
+                current.reset();
+            } else {
+                current.write(next);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void write() throws InterruptedException {
+        long target = output.count.get() + (long) MESSAGES * (message.length() + 1);
+        for (int i = 0; i < MESSAGES; i++) {
+            writeQueue.put(outgoingMessage);
+        }
+        while (output.count.get() < target) {
+            Thread.yield();
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        final AtomicLong count = new AtomicLong();
+
+        @Override
+        public void write(int b) {
+            count.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count.addAndGet(len);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package communicationmod.benchmarks;
+
+import communicationmod.StateJson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the two ways GameStateConverter has read the optional fields of powers: scanning the declared fields of
+ * the power's class for every field name, and resolving the fields once per class through StateJson.PowerFields. The
+ * power classes here have the same kinds of fields as the game's powers, including classes with none of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PowerFieldsBenchmark {
+
+    static class StrengthPower {
+        int amount = 2;
+    }
+
+    static class VulnerablePower {
+        int amount = 1;
+        private boolean justApplied = true;
+    }
+
+    static class ThornsPower {
+        int amount = 3;
+        private int damage = 3;
+    }
+
+    static class FlightPower {
+        int amount = 3;
+        private int storedAmount = 3;
+    }
+
+    static class NightmarePower {
+        int amount = 1;
+        private Object card = new Object();
+    }
+
+    static class RitualPower {
+        int amount = 3;
+        private boolean skipFirst = true;
+        private boolean onPlayer = false;
+    }
+
+    private List<Object> powers;
+
+    @Setup
+    public void setUp() {
+        powers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            powers.add(new StrengthPower());
+            powers.add(new VulnerablePower());
+            powers.add(new ThornsPower());
+            powers.add(new FlightPower());
+            powers.add(new NightmarePower());
+            powers.add(new RitualPower());
+        }
+    }
+
+    @Benchmark
+    public void declaredFieldScan(Blackhole blackhole) {
+        for (Object power : powers) {
+            blackhole.consume(getFieldIfExists(power, "damage"));
+            blackhole.consume(getFieldIfExists(power, "card"));
+            for (String fieldName : StateJson.MISC_FIELD_NAMES) {
+                Object misc = getFieldIfExists(power, fieldName);
+                if (misc != null) {
+                    blackhole.consume(misc);
+                    break;
+                }
+            }
+            for (String fieldName : StateJson.JUST_APPLIED_FIELD_NAMES) {
+                Object justApplied = getFieldIfExists(power, fieldName);
+                if (justApplied != null) {
+                    blackhole.consume(justApplied);
+                    break;
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void classValueCache(Blackhole blackhole) {
+        for (Object power : powers) {
+            StateJson.PowerFields fields = StateJson.PowerFields.of(power.getClass());
+            blackhole.consume(fields.getDamage(power));
+            blackhole.consume(fields.getCard(power));
+            blackhole.consume(fields.getMisc(power));
+            blackhole.consume(fields.getJustApplied(power));
+        }
+    }
+
+    // How the converter read each field before the lookups were cached: a scan of the declared fields every time
+    private static Object getFieldIfExists(Object power, String fieldName) {
+        return StateJson.getFieldValue(StateJson.findDeclaredField(power.getClass(), fieldName), power);
+    }
+}
@@ -0,0 +1,115 @@
+package communicationmod.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+import communicationmod.StateCapture;
+import communicationmod.StateDeltaEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures StateDeltaEncoder on the recorded combat state and the state after playing the first card in hand, which
+ * costs a point of energy and moves the card to the discard pile. Encoding alternates between the two, so every
+ * message is a delta, and is compared with encoding every state in full. The states are captured the way the
+ * converter captures them, with the map embedded as the same string in both.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateDeltaBenchmark {
+
+    private StateCapture before;
+    private StateCapture after;
+    private StateDeltaEncoder encoder;
+    private boolean flip;
+
+    @Setup
+    public void setUp() {
+        JsonObject state = JsonParser.parseString(Fixtures.loadCombatState()).getAsJsonObject();
+        String map = state.getAsJsonObject("game_state").get("map").toString();
+        before = capture(state, map);
+        JsonObject combat = state.getAsJsonObject("game_state").getAsJsonObject("combat_state");
+        JsonArray hand = combat.getAsJsonArray("hand");
+        combat.getAsJsonArray("discard_pile").add(hand.remove(0));
+        JsonObject player = combat.getAsJsonObject("player");
+        player.addProperty("energy", player.get("energy").getAsInt() - 1);
+        after = capture(state, map);
+        encoder = new StateDeltaEncoder();
+        encoder.encode(before);
+    }
+
+    @Benchmark
+    public String encodeDelta() {
+        flip = !flip;
+        return encoder.encode(flip ? after : before);
+    }
+
+    @Benchmark
+    public String encodeFull() {
+        flip = !flip;
+        encoder.reset();
+        return encoder.encode(flip ? after : before);
+    }
+
+    private static StateCapture capture(JsonElement state, String map) {
+        StateCapture capture = new StateCapture();
+        try {
+            write(capture, state, map);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return capture;
+    }
+
+    private static void write(JsonWriter writer, JsonElement element, String map) throws IOException {
+        if (element.isJsonObject()) {
+            writer.beginObject();
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                writer.name(entry.getKey());
+                if (entry.getKey().equals("map")) {
+                    writer.jsonValue(map);
+                } else {
+                    write(writer, entry.getValue(), map);
+                }
+            }
+            writer.endObject();
+        } else if (element.isJsonArray()) {
+            writer.beginArray();
+            for (JsonElement value : element.getAsJsonArray()) {
+                write(writer, value, map);
+            }
+            writer.endArray();
+        } else if (element.isJsonNull()) {
+            writer.nullValue();
+        } else {
+            JsonPrimitive value = element.getAsJsonPrimitive();
+            if (value.isBoolean()) {
+                writer.value(value.getAsBoolean());
+            } else if (value.isNumber()) {
+                writer.value(value.getAsNumber());
+            } else {
+                writer.value(value.getAsString());
+            }
+        }
+    }
+}
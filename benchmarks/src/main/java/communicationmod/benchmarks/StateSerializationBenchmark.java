@@ -0,0 +1,239 @@
+package communicationmod.benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import communicationmod.StateCapture;
+import communicationmod.StateJson;
+import communicationmod.benchmarks.Fixtures.Card;
+import communicationmod.benchmarks.Fixtures.MapNode;
+import communicationmod.benchmarks.Fixtures.Monster;
+import communicationmod.benchmarks.Fixtures.Power;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the two ways GameStateConverter has produced JSON for cards, monsters with powers and the map: building a
+ * tree of HashMaps for Gson, and writing straight to a JsonWriter. The map is also measured as a cached string, the
+ * way it is written while it is unchanged. The JsonWriter benchmarks write cards, powers and map nodes through
+ * StateJson, as the converter does; the HashMap benchmarks build the same JSON the way the converter used to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateSerializationBenchmark {
+
+    @Param({"3"})
+    public int monsterCount;
+
+    @Param({"8"})
+    public int powersPerMonster;
+
+    private static final StateJson.ValueWriter<Card> CARD_WRITER = StateSerializationBenchmark::writeCard;
+
+    private List<Card> cards;
+    private List<Monster> monsters;
+    private List<MapNode> map;
+    private String cachedMap;
+    private final StringWriter buffer = new StringWriter(64 * 1024);
+
+    @Setup
+    public void setUp() throws IOException {
+        cards = Fixtures.loadCards();
+        monsters = Fixtures.createMonsters(monsterCount, powersPerMonster);
+        map = Fixtures.loadMap();
+        cachedMap = mapJsonWriter();
+    }
+
+    @Benchmark
+    public String cardsHashMap() {
+        ArrayList<Object> json = new ArrayList<>();
+        for (Card card : cards) {
+            json.add(cardToMap(card));
+        }
+        return new Gson().toJson(json);
+    }
+
+    @Benchmark
+    public String cardsJsonWriter() throws IOException {
+        JsonWriter writer = newWriter();
+        writer.beginArray();
+        for (Card card : cards) {
+            writeCard(writer, card);
+        }
+        writer.endArray();
+        return finish(writer);
+    }
+
+    @Benchmark
+    public String monstersHashMap() {
+        ArrayList<Object> json = new ArrayList<>();
+        for (Monster monster : monsters) {
+            HashMap<String, Object> jsonMonster = new HashMap<>();
+            jsonMonster.put("id", monster.id);
+            jsonMonster.put("name", monster.name);
+            jsonMonster.put("current_hp", monster.currentHp);
+            jsonMonster.put("max_hp", monster.maxHp);
+            jsonMonster.put("intent", monster.intent);
+            jsonMonster.put("move_id", monster.moveId);
+            jsonMonster.put("move_base_damage", monster.moveBaseDamage);
+            jsonMonster.put("move_adjusted_damage", monster.moveAdjustedDamage);
+            jsonMonster.put("move_hits", monster.moveHits);
+            jsonMonster.put("half_dead", monster.halfDead);
+            jsonMonster.put("is_gone", monster.isGone);
+            jsonMonster.put("block", monster.block);
+            ArrayList<Object> powers = new ArrayList<>();
+            for (Power power : monster.powers) {
+                HashMap<String, Object> jsonPower = new HashMap<>();
+                jsonPower.put("id", power.id);
+                jsonPower.put("name", power.name);
+                jsonPower.put("amount", power.amount);
+                if (power.damage != null) {
+                    jsonPower.put("damage", power.damage);
+                }
+                if (power.card != null) {
+                    jsonPower.put("card", cardToMap(power.card));
+                }
+                if (power.storedAmount != null) {
+                    jsonPower.put("misc", power.storedAmount);
+                }
+                if (power.justApplied != null) {
+                    jsonPower.put("just_applied", power.justApplied);
+                }
+                powers.add(jsonPower);
+            }
+            jsonMonster.put("powers", powers);
+            json.add(jsonMonster);
+        }
+        return new Gson().toJson(json);
+    }
+
+    @Benchmark
+    public String monstersJsonWriter() throws IOException {
+        JsonWriter writer = newWriter();
+        writer.beginArray();
+        for (Monster monster : monsters) {
+            writer.beginObject();
+            writer.name("id").value(monster.id);
+            writer.name("name").value(monster.name);
+            writer.name("current_hp").value(monster.currentHp);
+            writer.name("max_hp").value(monster.maxHp);
+            writer.name("intent").value(monster.intent);
+            writer.name("move_id").value(monster.moveId);
+            writer.name("move_base_damage").value(monster.moveBaseDamage);
+            writer.name("move_adjusted_damage").value(monster.moveAdjustedDamage);
+            writer.name("move_hits").value(monster.moveHits);
+            writer.name("half_dead").value(monster.halfDead);
+            writer.name("is_gone").value(monster.isGone);
+            writer.name("block").value(monster.block);
+            writer.name("powers").beginArray();
+            for (Power power : monster.powers) {
+                StateJson.writePower(writer, power, power.id, power.name, power.amount, CARD_WRITER);
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        writer.endArray();
+        return finish(writer);
+    }
+
+    @Benchmark
+    public String mapHashMap() {
+        ArrayList<Object> json = new ArrayList<>();
+        for (MapNode node : map) {
+            HashMap<String, Object> jsonNode = new HashMap<>();
+            jsonNode.put("x", node.x);
+            jsonNode.put("y", node.y);
+            jsonNode.put("symbol", node.symbol);
+            ArrayList<Object> parents = new ArrayList<>();
+            ArrayList<Object> children = new ArrayList<>();
+            for (int i = 0; i < node.edges.length; i += 4) {
+                boolean out = node.edges[i] == node.x && node.edges[i + 1] == node.y;
+                HashMap<String, Object> coordinates = new HashMap<>();
+                coordinates.put("x", node.edges[out ? i + 2 : i]);
+                coordinates.put("y", node.edges[out ? i + 3 : i + 1]);
+                (out ? children : parents).add(coordinates);
+            }
+            jsonNode.put("parents", parents);
+            jsonNode.put("children", children);
+            json.add(jsonNode);
+        }
+        return new Gson().toJson(json);
+    }
+
+    @Benchmark
+    public String mapJsonWriter() throws IOException {
+        JsonWriter writer = newWriter();
+        writeMap(writer);
+        return finish(writer);
+    }
+
+    @Benchmark
+    public String mapCached() throws IOException {
+        JsonWriter writer = newWriter();
+        writer.jsonValue(cachedMap);
+        return finish(writer);
+    }
+
+    private JsonWriter newWriter() {
+        buffer.getBuffer().setLength(0);
+        return StateCapture.newJsonWriter(buffer);
+    }
+
+    private String finish(JsonWriter writer) throws IOException {
+        writer.flush();
+        return buffer.toString();
+    }
+
+    private void writeMap(JsonWriter writer) throws IOException {
+        writer.beginArray();
+        for (MapNode node : map) {
+            StateJson.writeMapNode(writer, node.x, node.y, node.symbol, node.edges);
+        }
+        writer.endArray();
+    }
+
+    private static HashMap<String, Object> cardToMap(Card card) {
+        HashMap<String, Object> jsonCard = new HashMap<>();
+        jsonCard.put("name", card.name);
+        jsonCard.put("uuid", card.uuid);
+        if (card.misc != 0) {
+            jsonCard.put("misc", card.misc);
+        }
+        jsonCard.put("is_playable", card.isPlayable);
+        jsonCard.put("cost", card.cost);
+        jsonCard.put("upgrades", card.upgrades);
+        jsonCard.put("id", card.id);
+        jsonCard.put("type", card.type);
+        jsonCard.put("rarity", card.rarity);
+        jsonCard.put("has_target", card.hasTarget);
+        jsonCard.put("exhausts", card.exhausts);
+        jsonCard.put("ethereal", card.ethereal);
+        return jsonCard;
+    }
+
+    private static void writeCard(JsonWriter writer, Card card) throws IOException {
+        writer.beginObject();
+        StateJson.writeCardFields(writer, card.name, card.uuid, card.misc, card.isPlayable, card.cost, card.upgrades,
+                card.id, card.type, card.rarity, card.hasTarget, card.exhausts, card.ethereal);
+        writer.endObject();
+    }
+}
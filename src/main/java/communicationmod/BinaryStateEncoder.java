@@ -0,0 +1,393 @@
+package communicationmod;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Encodes the messages sent to the external process in a compact binary form, for clients that ask for it in their
+ * ready message. Captured game states are encoded straight from their tokens, so they are never written as JSON text.
+ * Only messages that are text to begin with are read as JSON. One encoder is used per connection, because strings are
+ * only sent in full the first time.
+ *
+ * Each message is sent as a frame: a 4-byte big-endian payload length, then the payload. The payload is the schema
+ * version as one byte, followed by one value. A value is a tag byte, followed by:
+ * - END (0): nothing. Ends an array or object.
+ * - NULL (1), FALSE (2), TRUE (3): nothing.
+ * - INT (4): a zigzag-encoded varint.
+ * - DOUBLE (5): 8 bytes, an IEEE 754 double, big-endian.
+ * - STRING (6): a varint byte length and the UTF-8 bytes. The string is added to the end of the connection's string
+ *   table, starting from index 0.
+ * - STRING_REF (7): a varint index into the string table.
+ * - STRING_ONCE (8): as STRING, but not added to the string table. Used for long strings and once the table is full.
+ * - ARRAY (9): values, then END.
+ * - OBJECT (10): pairs of a key and a value, then END. Keys are FIELD or string values.
+ * - FIELD (11): a varint field tag, which stands for the name FIELD_NAMES[tag].
+ * Field tags are only ever added to the end of FIELD_NAMES. SCHEMA_VERSION changes if the meaning of anything above
+ * changes, or a tag is reused.
+ */
+public class BinaryStateEncoder {
+
+    public static final int SCHEMA_VERSION = 1;
+
+    static final int END = 0;
+    static final int NULL = 1;
+    static final int FALSE = 2;
+    static final int TRUE = 3;
+    static final int INT = 4;
+    static final int DOUBLE = 5;
+    static final int STRING = 6;
+    static final int STRING_REF = 7;
+    static final int STRING_ONCE = 8;
+    static final int ARRAY = 9;
+    static final int OBJECT = 10;
+    static final int FIELD = 11;
+
+    private static final int MAX_TABLE_SIZE = 65536;
+    private static final int MAX_TABLE_STRING_BYTES = 64;
+
+    /**
+     * The field names that have tags, in tag order. The most common come first, so that their tags take one byte.
+     */
+    public static final String[] FIELD_NAMES = {
+            "name", "id", "uuid", "cost", "type", "rarity", "upgrades", "is_playable", "has_target", "exhausts",
+            "ethereal", "misc", "amount", "x", "y", "symbol", "children", "parents", "powers", "counter",
+            "current_hp", "max_hp", "block", "intent", "move_id", "move_base_damage", "move_adjusted_damage",
+            "move_hits", "half_dead", "is_gone", "last_move_id", "second_last_move_id", "damage", "card",
+            "just_applied", "requires_target", "can_use", "can_discard", "price", "evoke_amount", "passive_amount",
+            "available_commands", "ready_for_command", "in_game", "game_state", "legal_actions", "error", "message",
+            "screen_type", "screen_state", "screen_name", "seed", "combat_state", "draw_pile", "discard_pile",
+            "exhaust_pile", "hand", "limbo", "card_in_play", "monsters", "player", "orbs", "energy", "turn",
+            "cards_discarded_this_turn", "times_damaged", "deck", "relics", "potions", "map", "gold", "floor",
+            "act", "act_boss", "ascension_level", "class", "room_phase", "room_type", "action_phase",
+            "current_action", "is_screen_up", "choice_list", "keys", "ruby", "emerald", "sapphire",
+            "event_id", "event_name", "body_text", "options", "text", "label", "disabled", "choice_index",
+            "chest_type", "chest_open", "rewards", "reward_type", "relic", "potion", "link", "cards",
+            "bowl_available", "skip_available", "current_node", "next_nodes", "first_node_chosen",
+            "boss_available", "purge_available", "purge_cost", "has_rested", "rest_options", "selected",
+            "selected_cards", "num_cards", "max_cards", "any_number", "can_pick_zero", "for_upgrade",
+            "for_transform", "for_purge", "confirm_up", "victory", "score", "state_version", "base_version",
+            "delta", "batch_step"
+    };
+
+    private static final HashMap<String, Integer> FIELD_TAGS = new HashMap<>();
+
+    static {
+        for (int i = 0; i < FIELD_NAMES.length; i++) {
+            FIELD_TAGS.put(FIELD_NAMES[i], i);
+        }
+    }
+
+    private final HashMap<String, Integer> stringTable = new HashMap<>();
+    private final TokenWriter tokenWriter = new TokenWriter();
+    private byte[] buffer = new byte[64 * 1024];
+    private int length = 0;
+
+    /**
+     * Encodes a message as a frame.
+     * @param message The message, which is encoded from its tokens if it is a captured state
+     * @return The frame, including its length header
+     */
+    public byte[] encodeFrame(OutgoingMessage message) {
+        StateCapture capture = message.getCapture();
+        if (capture == null) {
+            return encodeFrame(message.getText());
+        }
+        startFrame();
+        try {
+            capture.replay(tokenWriter);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Captured state could not be encoded.", e);
+        }
+        return finishFrame();
+    }
+
+    /**
+     * Encodes a JSON message as a frame.
+     * @param json The message, as sent in text mode
+     * @return The frame, including its length header
+     */
+    public byte[] encodeFrame(String json) {
+        startFrame();
+        try {
+            writeJson(json);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Message is not valid JSON: " + json, e);
+        }
+        return finishFrame();
+    }
+
+    private void startFrame() {
+        // The header is filled in once the length of the payload is known.
+        length = 4;
+        writeByte(SCHEMA_VERSION);
+    }
+
+    private byte[] finishFrame() {
+        int payloadLength = length - 4;
+        buffer[0] = (byte) (payloadLength >>> 24);
+        buffer[1] = (byte) (payloadLength >>> 16);
+        buffer[2] = (byte) (payloadLength >>> 8);
+        buffer[3] = (byte) payloadLength;
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private void writeJson(String json) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.setLenient(true);
+        writeValue(reader);
+    }
+
+    private void writeValue(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                writeByte(ARRAY);
+                while (reader.hasNext()) {
+                    writeValue(reader);
+                }
+                reader.endArray();
+                writeByte(END);
+                break;
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                writeByte(OBJECT);
+                while (reader.hasNext()) {
+                    writeKey(reader.nextName());
+                    writeValue(reader);
+                }
+                reader.endObject();
+                writeByte(END);
+                break;
+            case STRING:
+                writeString(reader.nextString());
+                break;
+            case NUMBER:
+                writeNumber(reader.nextString());
+                break;
+            case BOOLEAN:
+                writeByte(reader.nextBoolean() ? TRUE : FALSE);
+                break;
+            case NULL:
+                reader.nextNull();
+                writeByte(NULL);
+                break;
+            default:
+                throw new IOException("Unexpected " + token);
+        }
+    }
+
+    private void writeKey(String name) {
+        Integer tag = FIELD_TAGS.get(name);
+        if (tag != null) {
+            writeByte(FIELD);
+            writeVarint(tag);
+        } else {
+            writeString(name);
+        }
+    }
+
+    private void writeString(String value) {
+        Integer index = stringTable.get(value);
+        if (index != null) {
+            writeByte(STRING_REF);
+            writeVarint(index);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= MAX_TABLE_STRING_BYTES && stringTable.size() < MAX_TABLE_SIZE) {
+            stringTable.put(value, stringTable.size());
+            writeByte(STRING);
+        } else {
+            writeByte(STRING_ONCE);
+        }
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void writeNumber(String literal) {
+        if (literal.indexOf('.') < 0 && literal.indexOf('e') < 0 && literal.indexOf('E') < 0) {
+            try {
+                writeLong(Long.parseLong(literal));
+                return;
+            } catch (NumberFormatException e) {
+                // Too large for a long, so it is sent as a double
+            }
+        }
+        writeDouble(Double.parseDouble(literal));
+    }
+
+    private void writeLong(long value) {
+        writeByte(INT);
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    private void writeDouble(double value) {
+        long bits = Double.doubleToLongBits(value);
+        writeByte(DOUBLE);
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[length++] = (byte) (bits >>> shift);
+        }
+    }
+
+    private void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    /**
+     * Encodes what is written to it into the current frame. Like a JsonWriter from StateCapture.newJsonWriter(), it
+     * leaves out names whose value is null, so a state is encoded the same whether it was captured or sent as text.
+     */
+    private final class TokenWriter extends JsonWriter {
+
+        // The name of the value about to be written, which is only encoded once the value is known not to be null
+        private String pendingName = null;
+
+        TokenWriter() {
+            super(new StringWriter(0));
+        }
+
+        private void beforeValue() {
+            if (pendingName != null) {
+                writeKey(pendingName);
+                pendingName = null;
+            }
+        }
+
+        @Override
+        public JsonWriter beginArray() {
+            beforeValue();
+            writeByte(ARRAY);
+            return this;
+        }
+
+        @Override
+        public JsonWriter endArray() {
+            writeByte(END);
+            return this;
+        }
+
+        @Override
+        public JsonWriter beginObject() {
+            beforeValue();
+            writeByte(OBJECT);
+            return this;
+        }
+
+        @Override
+        public JsonWriter endObject() {
+            writeByte(END);
+            return this;
+        }
+
+        @Override
+        public JsonWriter name(String name) {
+            pendingName = name;
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(String value) {
+            if (value == null) {
+                return nullValue();
+            }
+            beforeValue();
+            writeString(value);
+            return this;
+        }
+
+        @Override
+        public JsonWriter jsonValue(String value) throws IOException {
+            if (value == null) {
+                return nullValue();
+            }
+            beforeValue();
+            writeJson(value);
+            return this;
+        }
+
+        @Override
+        public JsonWriter nullValue() {
+            if (pendingName != null) {
+                pendingName = null;
+            } else {
+                writeByte(NULL);
+            }
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(boolean value) {
+            beforeValue();
+            writeByte(value ? TRUE : FALSE);
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(Boolean value) {
+            if (value == null) {
+                return nullValue();
+            }
+            return value(value.booleanValue());
+        }
+
+        @Override
+        public JsonWriter value(double value) {
+            beforeValue();
+            writeDouble(value);
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(long value) {
+            beforeValue();
+            writeLong(value);
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(Number value) {
+            if (value == null) {
+                return nullValue();
+            }
+            beforeValue();
+            writeNumber(value.toString());
+            return this;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -112,7 +112,10 @@ public class ChoiceScreenUtils {
     }
 
     public static ArrayList<String> getCurrentChoiceList() {
-        ChoiceType choiceType = getCurrentChoiceType();
+        return getCurrentChoiceList(getCurrentChoiceType());
+    }
+
+    public static ArrayList<String> getCurrentChoiceList(ChoiceType choiceType) {
         ArrayList<String> choices;
         switch (choiceType) {
             case EVENT:
@@ -199,7 +202,7 @@ public class ChoiceScreenUtils {
         }
     }
 
-    private static boolean isCancelButtonAvailable(ChoiceType choiceType) {
+    public static boolean isCancelButtonAvailable(ChoiceType choiceType) {
         switch (choiceType) {
             case EVENT:
                 return false;
@@ -236,7 +239,7 @@ public class ChoiceScreenUtils {
         return isCancelButtonAvailable(getCurrentChoiceType());
     }
 
-    private static String getCancelButtonText(ChoiceType choiceType) {
+    public static String getCancelButtonText(ChoiceType choiceType) {
         switch (choiceType) {
             case CARD_REWARD:
                 return "skip";
@@ -284,7 +287,7 @@ public class ChoiceScreenUtils {
         pressCancelButton(getCurrentChoiceType());
     }
 
-    private static boolean isConfirmButtonAvailable(ChoiceType choiceType) {
+    public static boolean isConfirmButtonAvailable(ChoiceType choiceType) {
         switch (choiceType) {
             case EVENT:
                 return false;
@@ -321,7 +324,7 @@ public class ChoiceScreenUtils {
         return isConfirmButtonAvailable(getCurrentChoiceType());
     }
 
-    private static String getConfirmButtonText(ChoiceType choiceType) {
+    public static String getConfirmButtonText(ChoiceType choiceType) {
         switch (choiceType) {
             case CHEST:
                 return "proceed";
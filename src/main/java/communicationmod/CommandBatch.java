@@ -0,0 +1,89 @@
+package communicationmod;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the steps of a batch command in order, each one once the game is ready for a command after the one before.
+ * The states in between are not sent unless every state was asked for, so a whole turn can be played for the cost
+ * of one round trip. Commands sent while a batch is running wait in the queue until it has finished.
+ */
+public class CommandBatch {
+
+    private static final ArrayList<String> steps = new ArrayList<>();
+    private static int currentStep = -1;
+    private static boolean sendAllStates = false;
+    private static boolean stepDue = false;
+    private static int failedStep = -1;
+
+    /**
+     * Starts a batch and executes its first step.
+     * @param newSteps The commands to execute, in order
+     * @param sendAll Whether to send the state after every step, rather than only after the last
+     * @return Whether the first step changed the state, as from CommandExecutor.executeCommand
+     */
+    public static boolean start(List<String> newSteps, boolean sendAll) throws InvalidCommandException {
+        steps.clear();
+        steps.addAll(newSteps);
+        currentStep = -1;
+        sendAllStates = sendAll;
+        return executeNextStep();
+    }
+
+    /**
+     * @return true from the start of a batch until its last step has been executed
+     */
+    public static boolean isRunning() {
+        return !steps.isEmpty();
+    }
+
+    public static boolean isSendingAllStates() {
+        return sendAllStates;
+    }
+
+    /**
+     * @return true if the game became ready after the last step, so the next one should be executed
+     */
+    public static boolean isStepDue() {
+        return stepDue;
+    }
+
+    /**
+     * Called when the game is ready for a command while a batch is running.
+     */
+    public static void signalStepReady() {
+        stepDue = true;
+    }
+
+    /**
+     * Executes the next step. When it is the last, the batch is finished and the state that follows is sent as usual.
+     * @return Whether the step changed the state, as from CommandExecutor.executeCommand
+     * @throws InvalidCommandException If the step is invalid, which ends the batch
+     */
+    public static boolean executeNextStep() throws InvalidCommandException {
+        stepDue = false;
+        currentStep++;
+        String step = steps.get(currentStep);
+        boolean stateChanged;
+        try {
+            stateChanged = CommandLog.executeCommand(step);
+        } catch (InvalidCommandException e) {
+            failedStep = currentStep;
+            steps.clear();
+            throw new InvalidCommandException(String.format("Batch step %d (\"%s\") failed: %s", currentStep, step, e.getMessage()));
+        }
+        if (currentStep == steps.size() - 1) {
+            steps.clear();
+        }
+        return stateChanged;
+    }
+
+    /**
+     * @return The index of the step that ended the last batch by failing, or -1 if there is none to report
+     */
+    public static int getAndClearFailedStep() {
+        int step = failedStep;
+        failedStep = -1;
+        return step;
+    }
+}
@@ -25,13 +25,28 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 public class CommandExecutor {
 
     private static final Logger logger = LogManager.getLogger(CommandExecutor.class.getName());
 
     // Extension system for mods to register custom commands
-    private static final ArrayList<CommandExtension> extensions = new ArrayList<>();
+    // Indexed by command name, in the order they were registered
+    private static final LinkedHashMap<String, CommandExtension> extensions = new LinkedHashMap<>();
+
+    // The available commands, computed at most once per state version between game updates
+    private static ArrayList<String> availableCommandList = null;
+    private static HashSet<String> availableCommandSet = new HashSet<>();
+    private static ChoiceScreenUtils.ChoiceType choiceType = ChoiceScreenUtils.ChoiceType.NONE;
+    private static ArrayList<String> choiceList = new ArrayList<>();
+    private static boolean chooseAvailable = false;
+    private static boolean confirmAvailable = false;
+    private static boolean cancelAvailable = false;
+    private static long availableCommandsVersion = -1;
 
     /**
      * Interface for mods to register custom commands with CommunicationMod.
@@ -50,17 +65,21 @@ public class CommandExecutor {
      * Call this during mod initialization (e.g., in receivePostInitialize).
      */
     public static void registerCommand(CommandExtension extension) {
-        extensions.add(extension);
+        extensions.put(extension.getCommandName(), extension);
+        invalidateAvailableCommands();
         logger.info("Registered command extension: " + extension.getCommandName());
     }
 
     public static boolean executeCommand(String command) throws InvalidCommandException {
+        // File names are the only arguments whose case matters
+        String originalCommand = command.trim();
         command = command.toLowerCase();
         String [] tokens = command.split("\\s+");
         if(tokens.length == 0) {
             return false;
         }
-        if (!isCommandAvailable(tokens[0])) {
+        // A command from the current list of legal actions is known to be available without checking.
+        if (!LegalActions.contains(String.join(" ", tokens)) && !isCommandAvailable(tokens[0])) {
             throw new InvalidCommandException("Invalid command: " + tokens[0] + ". Possible commands: " + getAvailableCommands());
         }
         String command_tail = command.substring(tokens[0].length());
@@ -93,6 +112,29 @@ public class CommandExecutor {
             case "state":
                 executeStateCommand();
                 return false;
+            case "resync":
+                executeResyncCommand();
+                return false;
+            case "metrics":
+                executeMetricsCommand(tokens);
+                return false;
+            case "batch":
+                return executeBatchCommand(tokens, command_tail);
+            case "subscribe":
+                executeSubscribeCommand(tokens);
+                return false;
+            case "replay":
+                executeReplayCommand(tokens, originalCommand);
+                return false;
+            case "schedule":
+                executeScheduleCommand(tokens, command_tail, originalCommand);
+                return false;
+            case "snapshot":
+                executeSnapshotCommand(tokens);
+                return false;
+            case "restore":
+                executeRestoreCommand(tokens);
+                return false;
             case "key":
                 executeKeyCommand(tokens);
                 return true;
@@ -111,23 +153,48 @@ public class CommandExecutor {
 
             default:
                 // Check registered extensions
-                for (CommandExtension ext : extensions) {
-                    if (ext.getCommandName().equals(tokens[0]) && ext.isAvailable()) {
-                        ext.execute(tokens);
-                        return true;
-                    }
+                CommandExtension ext = extensions.get(tokens[0]);
+                if (ext != null && ext.isAvailable()) {
+                    ext.execute(tokens);
+                    return true;
                 }
                 logger.info("This should never happen.");
                 throw new InvalidCommandException("Command not recognized.");
         }
     }
 
+    /**
+     * Makes the next call to getAvailableCommands() work them out again. Called whenever the game has been updated.
+     */
+    public static void invalidateAvailableCommands() {
+        availableCommandList = null;
+    }
+
+    /**
+     * The list is shared until the game is next updated or the state version changes, and must not be modified.
+     * @return The commands that are currently available
+     */
     public static ArrayList<String> getAvailableCommands() {
+        if (availableCommandList == null || availableCommandsVersion != GameStateListener.getStateVersion()) {
+            computeAvailableCommands();
+        }
+        return availableCommandList;
+    }
+
+    private static void computeAvailableCommands() {
         ArrayList<String> availableCommands = new ArrayList<>();
-        if (isPlayCommandAvailable()) {
+        boolean inDungeon = isInDungeon();
+        // Working out the choice type is most of the cost, so it is only done once.
+        choiceType = inDungeon ? ChoiceScreenUtils.getCurrentChoiceType() : ChoiceScreenUtils.ChoiceType.NONE;
+        choiceList = inDungeon ? ChoiceScreenUtils.getCurrentChoiceList(choiceType) : new ArrayList<>();
+        boolean playAvailable = isPlayCommandAvailable();
+        chooseAvailable = inDungeon && !playAvailable && !choiceList.isEmpty();
+        confirmAvailable = inDungeon && ChoiceScreenUtils.isConfirmButtonAvailable(choiceType);
+        cancelAvailable = inDungeon && ChoiceScreenUtils.isCancelButtonAvailable(choiceType);
+        if (playAvailable) {
             availableCommands.add("play");
         }
-        if (isChooseCommandAvailable()) {
+        if (chooseAvailable) {
             availableCommands.add("choose");
         }
         if (isEndCommandAvailable()) {
@@ -136,40 +203,53 @@ public class CommandExecutor {
         if (isPotionCommandAvailable()) {
             availableCommands.add("potion");
         }
-        if (isConfirmCommandAvailable()) {
-            availableCommands.add(ChoiceScreenUtils.getConfirmButtonText());
+        if (confirmAvailable) {
+            availableCommands.add(ChoiceScreenUtils.getConfirmButtonText(choiceType));
         }
-        if (isCancelCommandAvailable()) {
-            availableCommands.add(ChoiceScreenUtils.getCancelButtonText());
+        if (cancelAvailable) {
+            availableCommands.add(ChoiceScreenUtils.getCancelButtonText(choiceType));
         }
         if (isStartCommandAvailable()) {
             availableCommands.add("start");
         }
-        if (isInDungeon()) {
+        if (inDungeon) {
             availableCommands.add("key");
             availableCommands.add("click");
             availableCommands.add("wait");
             availableCommands.add("abandon");
+            availableCommands.add("snapshot");
+            if (StateSnapshot.hasSnapshots()) {
+                availableCommands.add("restore");
+            }
         }
         // wait_for is always available
         availableCommands.add("wait_for");
         // Add commands from registered extensions
-        for (CommandExtension ext : extensions) {
+        for (CommandExtension ext : extensions.values()) {
             if (ext.isAvailable()) {
                 availableCommands.add(ext.getCommandName());
             }
         }
         availableCommands.add("state");
-        return availableCommands;
+        availableCommands.add("resync");
+        availableCommands.add("metrics");
+        availableCommands.add("batch");
+        availableCommands.add("subscribe");
+        availableCommands.add("replay");
+        availableCommands.add("schedule");
+        availableCommandList = availableCommands;
+        availableCommandSet = new HashSet<>(availableCommands);
+        availableCommandsVersion = GameStateListener.getStateVersion();
     }
 
     public static boolean isCommandAvailable(String command) {
+        getAvailableCommands();
         if(command.equals("confirm") || command.equalsIgnoreCase("proceed")) {
-            return isConfirmCommandAvailable();
+            return confirmAvailable;
         } else if (command.equals("skip") || command.equals("cancel") || command.equals("return") || command.equals("leave")) {
-            return isCancelCommandAvailable();
+            return cancelAvailable;
         } else {
-            return getAvailableCommands().contains(command);
+            return availableCommandSet.contains(command);
         }
     }
 
@@ -177,7 +257,7 @@ public class CommandExecutor {
         return CardCrawlGame.mode == CardCrawlGame.GameMode.GAMEPLAY && AbstractDungeon.isPlayerInDungeon() && AbstractDungeon.currMapNode != null;
     }
 
-    private static boolean isPlayCommandAvailable() {
+    public static boolean isPlayCommandAvailable() {
         if(isInDungeon()) {
             if(AbstractDungeon.getCurrRoom().phase == AbstractRoom.RoomPhase.COMBAT && !AbstractDungeon.isScreenUp) {
                 // Play command is not available if none of the cards are playable.
@@ -197,11 +277,26 @@ public class CommandExecutor {
     }
 
     public static boolean isChooseCommandAvailable() {
-        if(isInDungeon()) {
-            return !isPlayCommandAvailable() && !ChoiceScreenUtils.getCurrentChoiceList().isEmpty();
-        } else {
-            return false;
-        }
+        getAvailableCommands();
+        return chooseAvailable;
+    }
+
+    /**
+     * Shares the choice type worked out with the available commands, which is most of their cost.
+     * @return The type of the current choice screen, or NONE outside a dungeon
+     */
+    public static ChoiceScreenUtils.ChoiceType getCurrentChoiceType() {
+        getAvailableCommands();
+        return choiceType;
+    }
+
+    /**
+     * The list is shared in the same way as getAvailableCommands(), and must not be modified.
+     * @return The choices on the current screen, or an empty list outside a dungeon
+     */
+    public static ArrayList<String> getCurrentChoiceList() {
+        getAvailableCommands();
+        return choiceList;
     }
 
     public static boolean isPotionCommandAvailable() {
@@ -216,19 +311,13 @@ public class CommandExecutor {
     }
 
     public static boolean isConfirmCommandAvailable() {
-        if(isInDungeon()) {
-            return ChoiceScreenUtils.isConfirmButtonAvailable();
-        } else {
-            return false;
-        }
+        getAvailableCommands();
+        return confirmAvailable;
     }
 
     public static boolean isCancelCommandAvailable() {
-        if(isInDungeon()) {
-            return ChoiceScreenUtils.isCancelButtonAvailable();
-        } else {
-            return false;
-        }
+        getAvailableCommands();
+        return cancelAvailable;
     }
 
     public static boolean isStartCommandAvailable() {
@@ -239,6 +328,140 @@ public class CommandExecutor {
         CommunicationMod.mustSendGameState = true;
     }
 
+    private static void executeResyncCommand() {
+        CommunicationMod.requestFullState();
+        CommunicationMod.mustSendGameState = true;
+    }
+
+    private static void executeMetricsCommand(String[] tokens) throws InvalidCommandException {
+        boolean reset = false;
+        if (tokens.length >= 2) {
+            if (!tokens[1].equals("reset")) {
+                throw new InvalidCommandException(tokens, InvalidCommandException.InvalidCommandFormat.INVALID_ARGUMENT, tokens[1]);
+            }
+            reset = true;
+        }
+        GameStateListener.setMessage(Metrics.toJson());
+        if (reset) {
+            Metrics.reset();
+        }
+        CommunicationMod.mustSendGameState = true;
+    }
+
+    private static boolean executeBatchCommand(String[] tokens, String commandTail) throws InvalidCommandException {
+        String stepList = commandTail.trim();
+        boolean sendAll = tokens.length >= 2 && tokens[1].equals("all");
+        if (sendAll) {
+            stepList = stepList.substring(tokens[1].length());
+        }
+        ArrayList<String> steps = new ArrayList<>();
+        for (String step : stepList.split(";")) {
+            step = step.trim();
+            if (step.isEmpty()) {
+                continue;
+            }
+            if (step.split("\\s+")[0].equals("batch")) {
+                throw new InvalidCommandException(tokens, InvalidCommandException.InvalidCommandFormat.INVALID_ARGUMENT, step);
+            }
+            steps.add(step);
+        }
+        if (steps.isEmpty()) {
+            throw new InvalidCommandException(tokens, InvalidCommandException.InvalidCommandFormat.MISSING_ARGUMENT);
+        }
+        return CommandBatch.start(steps, sendAll);
+    }
+
+    private static void executeSubscribeCommand(String[] tokens) throws InvalidCommandException {
+        if (tokens.length < 2) {
+            throw new InvalidCommandException(tokens, InvalidCommandException.InvalidCommandFormat.MISSING_ARGUMENT);
+        }
+        if (tokens.length == 2 && tokens[1].equals("all")) {
+            StateProjection.clear();
+            GameStateListener.setMessage("Subscribed to the whole state");
+        } else {
+            StateProjection.subscribe(Arrays.asList(tokens).subList(1, tokens.length));
+            GameStateListener.setMessage("Subscribed to " + String.join(" ", StateProjection.getSections()));
+        }
+        // Sections that were left out may be back, so the next state cannot build on the last one.
+        CommunicationMod.requestFullState();
+        CommunicationMod.mustSendGameState = true;
+    }
+
+    private static void executeReplayCommand(String[] tokens, String originalCommand) throws InvalidCommandException {
+        if (tokens.length < 2) {
+            throw new InvalidCommandException(tokens, InvalidCommandException.InvalidCommandFormat.MISSING_ARGUMENT);
+        }
+        String path = originalCommand.substring(tokens[0].length()).trim();
+        CommandReplay.start(path);
+        GameStateListener.setMessage("Replaying " + path);
+        CommunicationMod.mustSendGameState = true;
+    }
+
+    private static void executeScheduleCommand(String[] tokens, String commandTail, String originalCommand) throws InvalidCommandException {
+        if (tokens.length < 2) {
+            throw new InvalidCommandException(tokens, InvalidCommandException.InvalidCommandFormat.MISSING_ARGUMENT);
+        }
+        if (tokens.length == 2 && tokens[1].equals("stop")) {
+            RunSchedule.stop();
+            GameStateListener.setMessage("Stopped the run schedule");
+            CommunicationMod.mustSendGameState = true;
+            return;
+        }
+        List<String> specs;
+        if (tokens[1].equals("file")) {
+            if (tokens.length < 3) {
+                throw new InvalidCommandException(tokens, InvalidCommandException.InvalidCommandFormat.MISSING_ARGUMENT);
+            }
+            String path = originalCommand.substring(tokens[0].length()).trim().substring(tokens[1].length()).trim();
+            specs = RunSchedule.readSpecs(path);
+        } else {
+            specs = new ArrayList<>();
+            for (String spec : commandTail.split(";")) {
+                spec = spec.trim();
+                if (!spec.isEmpty()) {
+                    specs.add(spec);
+                }
+            }
+        }
+        if (specs.isEmpty()) {
+            throw new InvalidCommandException(tokens, InvalidCommandException.InvalidCommandFormat.MISSING_ARGUMENT);
+        }
+        RunSchedule.start(specs);
+        GameStateListener.setMessage(String.format("Scheduled %d runs", specs.size()));
+        // From the main menu, the first state sent is that of the first run. Elsewhere, the runs start once the
+        // current one has been left.
+        if (!RunSchedule.isStepDue()) {
+            CommunicationMod.mustSendGameState = true;
+        }
+    }
+
+    private static void executeSnapshotCommand(String[] tokens) throws InvalidCommandException {
+        if (tokens.length < 2) {
+            throw new InvalidCommandException(tokens, InvalidCommandException.InvalidCommandFormat.MISSING_ARGUMENT);
+        }
+        // While actions are still running, their progress is spread through the game in ways that cannot be resumed.
+        if (!GameStateListener.isReadyForCommand()) {
+            throw new InvalidCommandException("Snapshots can only be taken while the game is waiting for a command.");
+        }
+        StateSnapshot.save(tokens[1]);
+        GameStateListener.setMessage("Saved snapshot " + tokens[1]);
+        CommunicationMod.mustSendGameState = true;
+    }
+
+    private static void executeRestoreCommand(String[] tokens) throws InvalidCommandException {
+        if (tokens.length < 2) {
+            throw new InvalidCommandException(tokens, InvalidCommandException.InvalidCommandFormat.MISSING_ARGUMENT);
+        }
+        StateSnapshot.restore(tokens[1]);
+        // The restored state may look no different to state detection, so it is reported as ready straight away.
+        if (AbstractDungeon.getCurrRoom().phase == AbstractRoom.RoomPhase.COMBAT) {
+            GameStateListener.signalTurnStart();
+        }
+        GameStateListener.signalReadyForCommand();
+        GameStateListener.setMessage("Restored snapshot " + tokens[1]);
+        CommunicationMod.mustSendGameState = true;
+    }
+
     private static void executePlayCommand(String[] tokens) throws InvalidCommandException {
         if(tokens.length < 2) {
             throw new InvalidCommandException(tokens, InvalidCommandException.InvalidCommandFormat.MISSING_ARGUMENT);
@@ -290,7 +513,7 @@ public class CommandExecutor {
     }
 
     private static void executeChooseCommand(String[] tokens) throws InvalidCommandException {
-        ArrayList<String> validChoices = ChoiceScreenUtils.getCurrentChoiceList();
+        ArrayList<String> validChoices = getCurrentChoiceList();
         if(validChoices.size() == 0) {
             throw new InvalidCommandException("The choice command is not implemented on this screen.");
         }
@@ -370,8 +593,22 @@ public class CommandExecutor {
         if (tokens.length < 2) {
             throw new InvalidCommandException(tokens, InvalidCommandException.InvalidCommandFormat.MISSING_ARGUMENT);
         }
+        // A trailing "fast" fast-forwards the animations of this run. It is not taken as a seed.
+        boolean fastMode = false;
+        if (tokens.length >= 3 && tokens[tokens.length - 1].equalsIgnoreCase("fast")) {
+            fastMode = true;
+            tokens = Arrays.copyOf(tokens, tokens.length - 1);
+        }
+        // A "generated" after the seed plays it as a generated seed, as recorded for a run that was not given one.
+        // The game treats runs with a chosen seed differently, such as for unlocks and score.
+        boolean seedGenerated = false;
+        if (tokens.length >= 5 && tokens[tokens.length - 1].equalsIgnoreCase("generated")) {
+            seedGenerated = true;
+            tokens = Arrays.copyOf(tokens, tokens.length - 1);
+        }
         int ascensionLevel = 0;
         boolean seedSet = false;
+        boolean isTrialSeed = false;
         long seed = 0;
         AbstractPlayer.PlayerClass selectedClass = null;
         for(AbstractPlayer.PlayerClass playerClass : AbstractPlayer.PlayerClass.values()) {
@@ -403,16 +640,25 @@ public class CommandExecutor {
             }
             seedSet = true;
             seed = SeedHelper.getLong(seedString);
-            boolean isTrialSeed = TrialHelper.isTrialSeed(seedString);
+            isTrialSeed = TrialHelper.isTrialSeed(seedString);
             if (isTrialSeed) {
                 Settings.specialSeed = seed;
                 Settings.isTrial = true;
                 seedSet = false;
+            } else if (seedGenerated) {
+                seedSet = false;
             }
         }
-        if(!seedSet) {
+        if(!seedSet && !seedGenerated) {
             seed = SeedHelper.generateUnoffensiveSeed(new Random(System.nanoTime()));
         }
+        // A replay of this command must start the same run, whatever seed it was given, and whether it was given one.
+        String seedArgument = isTrialSeed ? tokens[3] : SeedHelper.getString(seed);
+        String startCommand = String.format("start %s %d %s%s%s",
+                selectedClass.name().toLowerCase(), ascensionLevel, seedArgument,
+                !seedSet && !isTrialSeed ? " generated" : "", fastMode ? " fast" : "");
+        CommandLog.replaceCommand(startCommand);
+        CommunicationMod.recordTrajectory(TrajectoryWriter.RUN_START, startCommand);
         Settings.seed = seed;
         Settings.seedSet = seedSet;
         AbstractDungeon.generateSeeds();
@@ -424,6 +670,8 @@ public class CommandExecutor {
         CharacterManager manager = new CharacterManager();
         manager.setChosenCharacter(selectedClass);
         CardCrawlGame.chosenCharacter = selectedClass;
+        FastMode.setEnabledForRun(fastMode);
+        StateSnapshot.clear();
         GameStateListener.resetStateVariables();
     }
 
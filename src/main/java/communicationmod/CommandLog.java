@@ -0,0 +1,176 @@
+package communicationmod;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records every command received from the external process to a file, so that a run can be replayed by the replay
+ * command. Batch and schedule commands are not recorded themselves. Instead, the commands they run are recorded as they
+ * run, including the start and abandon commands of scheduled runs, so that a replay does the same thing at the same
+ * point. The log is plain text, appended to and flushed after every command, one record per line:
+ * - "c Command": a command, in the order it was executed. Start commands are recorded with the class, ascension
+ *   level and seed they started the run with, so that replaying them starts the same run. A seed that was generated
+ *   rather than given is followed by "generated".
+ * - "h Hash": the hash of the game state the next command was executed in, as from GameStateConverter.hashGameState(),
+ *   in hexadecimal. Only recorded in a dungeon, and only with commandLogStateHashes=true.
+ * Lines starting with "#" are comments.
+ */
+public class CommandLog {
+
+    private static final Logger logger = LogManager.getLogger(CommandLog.class.getName());
+    private static final String HEADER = "# CommunicationMod command log, version 1";
+
+    private static BufferedWriter out = null;
+    private static boolean hashStates = false;
+    private static String pendingCommand = null;
+    private static long pendingHash = -1;
+
+    /**
+     * A command read back from a log.
+     */
+    public static class Entry {
+        public final String command;
+        // The hash of the state the command was executed in, or -1 if none was recorded
+        public final long stateHash;
+
+        Entry(String command, long stateHash) {
+            this.command = command;
+            this.stateHash = stateHash;
+        }
+    }
+
+    /**
+     * Starts appending to the given file. Called once, when the mod is loaded.
+     * @param path The file to append to
+     * @param hashes Whether to record the hash of the state each command is executed in
+     */
+    static void open(String path, boolean hashes) {
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path, true), StandardCharsets.UTF_8));
+            out.write(HEADER);
+            out.newLine();
+            out.flush();
+            hashStates = hashes;
+            logger.info("Recording commands to " + path);
+        } catch (IOException e) {
+            logger.error("Could not open command log " + path + ". Commands will not be recorded.", e);
+            out = null;
+        }
+    }
+
+    public static boolean isRecording() {
+        return out != null;
+    }
+
+    /**
+     * Executes a command, recording it to the log if there is one.
+     * @return Whether the command changed the state, as from CommandExecutor.executeCommand
+     */
+    public static boolean executeCommand(String command) throws InvalidCommandException {
+        beginCommand(command);
+        try {
+            return CommandExecutor.executeCommand(command);
+        } finally {
+            endCommand();
+        }
+    }
+
+    /**
+     * Called before a command is executed.
+     * @param command The command as received
+     */
+    public static void beginCommand(String command) {
+        if (out == null || runsOtherCommands(command)) {
+            return;
+        }
+        pendingCommand = toSingleLine(command);
+        pendingHash = hashStates ? GameStateConverter.hashGameState() : -1;
+    }
+
+    /**
+     * Replaces the command being executed in the log, for commands whose effect depends on more than their text.
+     * @param command A command that has the same effect, whenever it is executed
+     */
+    public static void replaceCommand(String command) {
+        if (pendingCommand != null) {
+            pendingCommand = toSingleLine(command);
+        }
+    }
+
+    private static boolean runsOtherCommands(String command) {
+        String name = command.trim().split("\\s+")[0].toLowerCase();
+        return name.equals("batch") || name.equals("schedule");
+    }
+
+    // Commands are split on any whitespace, so a line break in one can be written as a space.
+    private static String toSingleLine(String command) {
+        return command.replace('\r', ' ').replace('\n', ' ');
+    }
+
+    /**
+     * Called once the command has been executed, whether or not it was valid, and writes it to the log.
+     */
+    public static void endCommand() {
+        if (out == null || pendingCommand == null) {
+            return;
+        }
+        try {
+            if (pendingHash >= 0) {
+                out.write("h " + Long.toHexString(pendingHash));
+                out.newLine();
+            }
+            out.write("c " + pendingCommand);
+            out.newLine();
+            out.flush();
+        } catch (IOException e) {
+            logger.error("Could not write to command log. Commands will no longer be recorded.", e);
+            out = null;
+        }
+        pendingCommand = null;
+    }
+
+    /**
+     * Reads the commands in a log.
+     * @param path The file to read
+     * @return The commands in the log, in order
+     * @throws IOException If the file cannot be read or is not a command log
+     */
+    public static List<Entry> read(String path) throws IOException {
+        ArrayList<Entry> entries = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8))) {
+            long stateHash = -1;
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (line.startsWith("h ")) {
+                    try {
+                        stateHash = Long.parseLong(line.substring(2).trim(), 16);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid hash on line " + lineNumber + " of " + path);
+                    }
+                } else if (line.startsWith("c ")) {
+                    entries.add(new Entry(line.substring(2), stateHash));
+                    stateHash = -1;
+                } else {
+                    throw new IOException("Invalid record on line " + lineNumber + " of " + path);
+                }
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,98 @@
+package communicationmod;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays a command log written by CommandLog. Each command is executed as soon as the game is ready for a command
+ * after the one before, with no external process involved. Where the log has the hash of the state a command was
+ * executed in, the current state is checked against it first, and the replay stops at the first state that differs.
+ * Commands sent while a replay is running wait in the queue until it has finished.
+ */
+public class CommandReplay {
+
+    private static final Logger logger = LogManager.getLogger(CommandReplay.class.getName());
+
+    private static final ArrayList<CommandLog.Entry> entries = new ArrayList<>();
+    private static String replayPath = null;
+    private static int nextEntry = 0;
+
+    /**
+     * Loads a log and starts replaying it once the game is ready for a command.
+     * @param path The log to replay
+     * @throws InvalidCommandException If the log cannot be read, or a replay is already running
+     */
+    public static void start(String path) throws InvalidCommandException {
+        if (isRunning()) {
+            throw new InvalidCommandException("A replay of " + replayPath + " is already running.");
+        }
+        List<CommandLog.Entry> newEntries;
+        try {
+            newEntries = CommandLog.read(path);
+        } catch (IOException e) {
+            throw new InvalidCommandException("Could not read command log " + path + ": " + e.getMessage());
+        }
+        entries.clear();
+        entries.addAll(newEntries);
+        replayPath = path;
+        nextEntry = 0;
+        logger.info(String.format("Replaying %d commands from %s", entries.size(), path));
+    }
+
+    public static boolean isRunning() {
+        return nextEntry < entries.size();
+    }
+
+    /**
+     * @return true if the next command should be executed now
+     */
+    public static boolean isStepDue() {
+        return isRunning() && !CommandBatch.isRunning() && !CommunicationMod.mustSendGameState
+                && !GameStateListener.isWaitingForCondition() && GameStateListener.isReadyForCommand();
+    }
+
+    /**
+     * Checks the state against the log, then executes the next command. Once the replay has finished or diverged,
+     * the result is logged and sent as the message of the next state.
+     * @return Whether the command changed the state, as from CommandExecutor.executeCommand
+     * @throws InvalidCommandException If the command is invalid. The replay carries on, since the recorded command
+     * may have been invalid too.
+     */
+    public static boolean executeNextStep() throws InvalidCommandException {
+        int step = nextEntry;
+        CommandLog.Entry entry = entries.get(nextEntry++);
+        if (entry.stateHash >= 0) {
+            long stateHash = GameStateConverter.hashGameState();
+            if (stateHash != entry.stateHash) {
+                finish(String.format("Replay of %s diverged before step %d (\"%s\"): expected state hash %s, found %s",
+                        replayPath, step, entry.command, Long.toHexString(entry.stateHash), Long.toHexString(stateHash)));
+                // Nothing else will send the state the replay stopped in
+                CommunicationMod.mustSendGameState = true;
+                return false;
+            }
+        }
+        CommunicationMod.recordTrajectory(TrajectoryWriter.COMMAND, entry.command);
+        try {
+            return CommandExecutor.executeCommand(entry.command);
+        } finally {
+            if (!isRunning() && replayPath != null) {
+                finish(String.format("Replayed %d commands from %s without diverging", entries.size(), replayPath));
+            }
+        }
+    }
+
+    /**
+     * Ends the replay. The result goes out with the next state that is sent.
+     */
+    private static void finish(String result) {
+        logger.info(result);
+        entries.clear();
+        nextEntry = 0;
+        replayPath = null;
+        GameStateListener.setMessage(result);
+    }
+}
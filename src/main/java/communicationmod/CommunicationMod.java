@@ -6,6 +6,9 @@ import basemod.interfaces.PostInitializeSubscriber;
 import basemod.interfaces.PostUpdateSubscriber;
 import basemod.interfaces.PreUpdateSubscriber;
 import com.evacipated.cardcrawl.modthespire.lib.SpireConfig;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.lwjgl.LwjglApplicationConfiguration;
+import com.badlogic.gdx.backends.lwjgl.LwjglGraphics;
 import com.evacipated.cardcrawl.modthespire.lib.SpireInitializer;
 import com.google.gson.Gson;
 import com.megacrit.cardcrawl.core.Settings;
@@ -24,6 +27,7 @@ import java.util.Properties;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @SpireInitializer
 public class CommunicationMod implements PostInitializeSubscriber, PostUpdateSubscriber, PostDungeonUpdateSubscriber, PreUpdateSubscriber, OnStateChangeSubscriber {
@@ -33,14 +37,33 @@ public class CommunicationMod implements PostInitializeSubscriber, PostUpdateSub
     public static boolean messageReceived = false;
     private static final Logger logger = LogManager.getLogger(CommunicationMod.class.getName());
     private static Thread writeThread;
-    private static BlockingQueue<String> writeQueue;
+    private static BlockingQueue<OutgoingMessage> writeQueue;
     private static Thread readThread;
+    private static DataReader dataReader;
+    private static DataWriter dataWriter;
     private static Thread errorThread;
+    private static SocketListener socketListener;
+    private static Thread socketThread;
+    private static Thread metricsThread;
+    private static TrajectoryWriter trajectoryWriter;
+    private static Thread trajectoryThread;
+    // Whether a run was started since trajectories began, and its end has not been recorded yet
+    private static boolean trajectoryRunOpen = false;
     private static BlockingQueue<String> readQueue;
     private static final String MODNAME = "Communication Mod";
     private static final String AUTHOR = "Forgotten Arbiter";
     private static final String DESCRIPTION = "This mod communicates with an external program to play Slay the Spire.";
     public static boolean mustSendGameState = false;
+    // Read once, because the render patches check it every frame
+    private static boolean headless = false;
+    private static int updatesPerFrame = 1;
+    // The last game state queued for sending that a newer state may still replace
+    private static OutgoingMessage replaceableState = null;
+    private static final AtomicLong elidedStateCount = new AtomicLong();
+    private static final StateDeltaEncoder deltaEncoder = new StateDeltaEncoder();
+    // The connection that the last game state was sent to
+    private static int stateConnectionId = -1;
+    private static int processConnectionId = 0;
     private static ArrayList<OnStateChangeSubscriber> onStateChangeSubscribers;
 
     private static SpireConfig communicationConfig;
@@ -48,9 +71,37 @@ public class CommunicationMod implements PostInitializeSubscriber, PostUpdateSub
     private static final String GAME_START_OPTION = "runAtGameStart";
     private static final String VERBOSE_OPTION = "verbose";
     private static final String INITIALIZATION_TIMEOUT_OPTION = "maxInitializationTimeout";
+    private static final String TRANSPORT_OPTION = "transport";
+    private static final String PORT_OPTION = "port";
+    private static final String COALESCE_STATES_OPTION = "coalesceStates";
+    private static final String DELTA_STATES_OPTION = "deltaStates";
+    private static final String MAP_ON_CHANGE_OPTION = "sendMapOnlyOnChange";
+    private static final String METRICS_FILE_OPTION = "metricsFile";
+    private static final String METRICS_INTERVAL_OPTION = "metricsIntervalSeconds";
+    private static final String HEADLESS_OPTION = "headless";
+    private static final String UNCAP_FRAME_RATE_OPTION = "uncapFrameRate";
+    private static final String FAST_MODE_OPTION = "fastMode";
+    private static final String UPDATES_PER_FRAME_OPTION = "updatesPerFrame";
+    private static final String MAX_SNAPSHOTS_OPTION = "maxSnapshots";
+    private static final String ENCODE_OFF_GAME_THREAD_OPTION = "encodeStatesOffGameThread";
+    private static final String COMMAND_LOG_FILE_OPTION = "commandLogFile";
+    private static final String COMMAND_LOG_HASHES_OPTION = "commandLogStateHashes";
+    private static final String REPLAY_FILE_OPTION = "replayFile";
+    private static final String TRAJECTORY_DIRECTORY_OPTION = "trajectoryDirectory";
+    private static final String TRAJECTORY_SEGMENT_OPTION = "trajectorySegmentMegabytes";
+    private static final String TRAJECTORY_COMPRESSION_OPTION = "trajectoryCompression";
     private static final String DEFAULT_COMMAND = "";
+    private static final String PROCESS_TRANSPORT = "process";
+    private static final String SOCKET_TRANSPORT = "socket";
+    private static final int DEFAULT_PORT = 38765;
     private static final long DEFAULT_TIMEOUT = 10L;
     private static final boolean DEFAULT_VERBOSITY = true;
+    private static final long HANDSHAKE_POLL_INTERVAL_MS = 50L;
+    private static final long DEFAULT_METRICS_INTERVAL = 10L;
+    private static final int DEFAULT_MAX_SNAPSHOTS = 16;
+    private static final int DEFAULT_TRAJECTORY_SEGMENT_MEGABYTES = 64;
+    private static final long TRAJECTORY_SHUTDOWN_TIMEOUT_MS = 5000L;
+    private static final String GZIP_COMPRESSION = "gzip";
 
     public CommunicationMod(){
         BaseMod.subscribe(this);
@@ -62,6 +113,25 @@ public class CommunicationMod implements PostInitializeSubscriber, PostUpdateSub
             defaults.put(GAME_START_OPTION, Boolean.toString(false));
             defaults.put(INITIALIZATION_TIMEOUT_OPTION, Long.toString(DEFAULT_TIMEOUT));
             defaults.put(VERBOSE_OPTION, Boolean.toString(DEFAULT_VERBOSITY));
+            defaults.put(TRANSPORT_OPTION, PROCESS_TRANSPORT);
+            defaults.put(PORT_OPTION, Integer.toString(DEFAULT_PORT));
+            defaults.put(COALESCE_STATES_OPTION, Boolean.toString(false));
+            defaults.put(DELTA_STATES_OPTION, Boolean.toString(false));
+            defaults.put(MAP_ON_CHANGE_OPTION, Boolean.toString(false));
+            defaults.put(METRICS_FILE_OPTION, "");
+            defaults.put(METRICS_INTERVAL_OPTION, Long.toString(DEFAULT_METRICS_INTERVAL));
+            defaults.put(HEADLESS_OPTION, Boolean.toString(false));
+            defaults.put(UNCAP_FRAME_RATE_OPTION, Boolean.toString(false));
+            defaults.put(FAST_MODE_OPTION, Boolean.toString(false));
+            defaults.put(UPDATES_PER_FRAME_OPTION, Integer.toString(1));
+            defaults.put(MAX_SNAPSHOTS_OPTION, Integer.toString(DEFAULT_MAX_SNAPSHOTS));
+            defaults.put(ENCODE_OFF_GAME_THREAD_OPTION, Boolean.toString(true));
+            defaults.put(COMMAND_LOG_FILE_OPTION, "");
+            defaults.put(COMMAND_LOG_HASHES_OPTION, Boolean.toString(true));
+            defaults.put(REPLAY_FILE_OPTION, "");
+            defaults.put(TRAJECTORY_DIRECTORY_OPTION, "");
+            defaults.put(TRAJECTORY_SEGMENT_OPTION, Integer.toString(DEFAULT_TRAJECTORY_SEGMENT_MEGABYTES));
+            defaults.put(TRAJECTORY_COMPRESSION_OPTION, GZIP_COMPRESSION);
             communicationConfig = new SpireConfig("CommunicationMod", "config", defaults);
             String command = communicationConfig.getString(COMMAND_OPTION);
             // I want this to always be saved to the file so people can set it more easily.
@@ -74,7 +144,40 @@ public class CommunicationMod implements PostInitializeSubscriber, PostUpdateSub
             e.printStackTrace();
         }
 
-        if(getRunOnGameStartOption()) {
+        headless = getHeadlessOption();
+        updatesPerFrame = getUpdatesPerFrameOption();
+        FastMode.setEnabledByConfig(getFastModeOption());
+        StateSnapshot.setCapacity(getMaxSnapshotsOption());
+        Metrics.registerGauge("read_queue_depth", CommunicationMod::getReadQueueDepth);
+        Metrics.registerGauge("write_queue_depth", CommunicationMod::getWriteQueueDepth);
+        Metrics.registerGauge("elided_states", CommunicationMod::getElidedStateCount);
+        Metrics.registerGauge("fast_mode", () -> FastMode.isEnabled() ? 1 : 0);
+        Metrics.registerGauge("snapshot_objects", StateSnapshot::getLastSnapshotObjects);
+        for (GameStateListener.VisualBlocker blocker : GameStateListener.VisualBlocker.values()) {
+            Metrics.registerGauge("visual_blocked_frames_" + blocker.getName(), () -> GameStateListener.getVisualBlockedFrames(blocker));
+        }
+        if(!getCommandLogFileOption().isEmpty()) {
+            CommandLog.open(getCommandLogFileOption(), getCommandLogHashesOption());
+        }
+        if(!getMetricsFileOption().isEmpty()) {
+            long interval = TimeUnit.SECONDS.toMillis(getMetricsIntervalOption());
+            metricsThread = new Thread(new MetricsDumper(getMetricsFileOption(), interval));
+            metricsThread.setDaemon(true);
+            metricsThread.start();
+        }
+        if(!getTrajectoryDirectoryOption().isEmpty()) {
+            long segmentBytes = getTrajectorySegmentMegabytesOption() * 1024L * 1024L;
+            trajectoryWriter = new TrajectoryWriter(getTrajectoryDirectoryOption(), segmentBytes, isGzipTrajectoryCompression());
+            trajectoryThread = new Thread(trajectoryWriter);
+            trajectoryThread.setDaemon(true);
+            trajectoryThread.start();
+            Metrics.registerGauge("trajectory_records_dropped", trajectoryWriter::getDroppedRecords);
+        }
+
+        if(isSocketTransport()) {
+            // The external process connects to us whenever it likes, so there is no reason to wait to listen.
+            startSocketListener();
+        } else if(getRunOnGameStartOption()) {
             boolean success = startExternalProcess();
         }
     }
@@ -84,26 +187,69 @@ public class CommunicationMod implements PostInitializeSubscriber, PostUpdateSub
     }
 
     public void receivePreUpdate() {
-        if(listener != null && !listener.isAlive() && writeThread != null && writeThread.isAlive()) {
-            logger.info("Child process has died...");
+        Metrics.startFrame();
+        long startTime = System.nanoTime();
+        RunSchedule.countFrame();
+        CommandExecutor.invalidateAvailableCommands();
+        boolean childDied = listener != null && !listener.isAlive();
+        boolean outputClosed = dataReader != null && dataReader.isEndOfStream();
+        if((childDied || outputClosed) && writeThread != null && writeThread.isAlive()) {
+            if (childDied) {
+                logger.info("Child process has died...");
+            } else {
+                logger.info("Child process closed its stdout...");
+            }
             writeThread.interrupt();
             readThread.interrupt();
             if (errorThread != null) errorThread.interrupt();
         }
-        if(messageAvailable()) {
+        if(socketListener != null && socketListener.consumeNewConnection() && GameStateListener.isWaitingForCommand()) {
+            mustSendGameState = true;
+        }
+        // The next step of a running batch, schedule or replay goes before any command that was sent while it was running.
+        boolean batchStepDue = CommandBatch.isStepDue();
+        boolean scheduleStepDue = !batchStepDue && RunSchedule.isStepDue();
+        boolean replayStepDue = !batchStepDue && !scheduleStepDue && CommandReplay.isStepDue();
+        boolean commandDue = !CommandReplay.isRunning() && messageAvailable();
+        if(batchStepDue || scheduleStepDue || replayStepDue || commandDue) {
+            long commandStartTime = System.nanoTime();
             try {
-                boolean stateChanged = CommandExecutor.executeCommand(readMessage());
+                boolean stateChanged;
+                if (batchStepDue) {
+                    stateChanged = CommandBatch.executeNextStep();
+                } else if (scheduleStepDue) {
+                    stateChanged = RunSchedule.executeNextStep();
+                } else if (replayStepDue) {
+                    stateChanged = CommandReplay.executeNextStep();
+                } else {
+                    stateChanged = executeReceivedCommand(readMessage());
+                }
                 if(stateChanged) {
                     GameStateListener.registerCommandExecution();
                 }
             } catch (InvalidCommandException e) {
                 HashMap<String, Object> jsonError = new HashMap<>();
                 jsonError.put("error", e.getMessage());
+                int failedStep = CommandBatch.getAndClearFailedStep();
+                if (failedStep >= 0) {
+                    jsonError.put("batch_step", failedStep);
+                }
                 jsonError.put("ready_for_command", GameStateListener.isWaitingForCommand());
                 Gson gson = new Gson();
                 sendMessage(gson.toJson(jsonError));
+            } finally {
+                Metrics.recordTime(Metrics.Timer.EXECUTE_COMMAND, commandStartTime);
             }
         }
+        Metrics.recordTime(Metrics.Timer.PRE_UPDATE, startTime);
+    }
+
+    /**
+     * Executes a command from the external process, recording it to the command log if there is one.
+     */
+    private static boolean executeReceivedCommand(String command) throws InvalidCommandException {
+        recordTrajectory(TrajectoryWriter.COMMAND, command);
+        return CommandLog.executeCommand(command);
     }
 
     public static void subscribe(OnStateChangeSubscriber sub) {
@@ -117,6 +263,30 @@ public class CommunicationMod implements PostInitializeSubscriber, PostUpdateSub
     }
 
     public void receiveOnStateChange() {
+        if (CommandBatch.isRunning()) {
+            boolean ready = GameStateListener.isReadyForCommand();
+            if (CommandBatch.isSendingAllStates()) {
+                sendGameState();
+            } else if (ready) {
+                // Consumes a forced ready state and ends the wait for the step, as sending the state would have.
+                GameStateListener.isWaitingForCommand();
+                Metrics.recordReadyForCommand();
+            }
+            if (ready) {
+                CommandBatch.signalStepReady();
+            }
+            return;
+        }
+        if (RunSchedule.isAtRunBoundary()) {
+            // The scheduler leaves the finished run or starts the next one without asking the external process.
+            if (trajectoryWriter != null && RunOutcome.isGameOver()) {
+                // The state is not sent, but it ends the run's trajectory
+                recordTrajectoryState(OutgoingMessage.of(GameStateConverter.getCommunicationState()));
+            }
+            GameStateListener.isWaitingForCommand();
+            RunSchedule.signalStepReady();
+            return;
+        }
         sendGameState();
     }
 
@@ -126,9 +296,69 @@ public class CommunicationMod implements PostInitializeSubscriber, PostUpdateSub
 
     public void receivePostInitialize() {
         setUpOptionsMenu();
+        if (getUncapFrameRateOption()) {
+            uncapFrameRate();
+        }
+        if (!getReplayFileOption().isEmpty()) {
+            try {
+                CommandReplay.start(getReplayFileOption());
+            } catch (InvalidCommandException e) {
+                logger.error(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return true if the game should skip drawing the dungeon and menus, while still updating them
+     */
+    public static boolean isHeadless() {
+        return headless;
+    }
+
+    /**
+     * @return The number of times the game should be updated for each frame drawn while an external process is connected
+     */
+    public static int getUpdatesPerFrame() {
+        return updatesPerFrame;
+    }
+
+    /**
+     * Decides whether to run another update in the same frame. There is nothing to gain from one once the game is
+     * ready for a command and no command is waiting, and the external process may be waiting on the state to decide.
+     * A running replay never waits on anything but the game, and neither does the scheduler between runs.
+     * @return true if another update should be run before the next frame is drawn
+     */
+    public static boolean shouldRunExtraUpdate() {
+        if (CommandReplay.isRunning() || RunSchedule.isStepDue()) {
+            return true;
+        }
+        if (!isExternalProcessConnected()) {
+            return false;
+        }
+        return messageAvailable() || !GameStateListener.isReadyForCommand();
+    }
+
+    /**
+     * Turns off vsync and the frame rate limit, so that the game updates as often as the CPU allows.
+     * The limit lives in the configuration the game was launched with, which libGDX reads again every frame.
+     */
+    private static void uncapFrameRate() {
+        Gdx.graphics.setVSync(false);
+        if (Gdx.graphics instanceof LwjglGraphics) {
+            LwjglApplicationConfiguration config = (LwjglApplicationConfiguration) ReflectionHacks.getPrivate(Gdx.graphics, LwjglGraphics.class, "config");
+            if (config != null) {
+                config.foregroundFPS = 0;
+                config.backgroundFPS = 0;
+                logger.info("Frame rate uncapped.");
+                return;
+            }
+        }
+        logger.error("Could not uncap the frame rate. Only vsync was turned off.");
     }
 
     public void receivePostUpdate() {
+        long startTime = System.nanoTime();
+        CommandExecutor.invalidateAvailableCommands();
         boolean stateChanged = false;
 
         // If waiting for a specific condition, check it but don't let regular state changes interfere
@@ -156,10 +386,15 @@ public class CommunicationMod implements PostInitializeSubscriber, PostUpdateSub
             mustSendGameState = false;
         }
         InputActionPatch.doKeypress = false;
+        Metrics.recordTime(Metrics.Timer.POST_UPDATE, startTime);
     }
 
     public void receivePostDungeonUpdate() {
+        long startTime = System.nanoTime();
         boolean stateChanged = false;
+        if (FastMode.isEnabled()) {
+            FastMode.fastForwardDungeon();
+        }
 
         // If waiting for a specific condition, ONLY check that condition
         // Don't let regular state changes interfere
@@ -179,8 +414,9 @@ public class CommunicationMod implements PostInitializeSubscriber, PostUpdateSub
         }
 
         if(AbstractDungeon.getCurrRoom().isBattleOver) {
-            GameStateListener.signalTurnEnd();
+            GameStateListener.signalCombatEnd();
         }
+        Metrics.recordTime(Metrics.Timer.POST_DUNGEON_UPDATE, startTime);
     }
 
     private void setUpOptionsMenu() {
@@ -219,7 +455,9 @@ public class CommunicationMod implements PostInitializeSubscriber, PostUpdateSub
                 "(Re)start external process",
                 475, 700, Settings.CREAM_COLOR, FontHelper.charDescFont,
                 settingsPanel, modLabel -> {
-                    if(listener != null && listener.isAlive()) {
+                    if(isSocketTransport()) {
+                        modLabel.text = "Restart socket listener";
+                    } else if(listener != null && listener.isAlive()) {
                         modLabel.text = "Restart external process";
                     } else {
                         modLabel.text = "Start external process";
@@ -257,9 +495,12 @@ public class CommunicationMod implements PostInitializeSubscriber, PostUpdateSub
 
     private void startCommunicationThreads() {
         writeQueue = new LinkedBlockingQueue<>();
-        writeThread = new Thread(new DataWriter(writeQueue, listener.getOutputStream(), getVerbosityOption()));
+        dataWriter = new DataWriter(writeQueue, listener.getOutputStream(), getVerbosityOption());
+        writeThread = new Thread(dataWriter);
         writeThread.start();
-        readThread = new Thread(new DataReader(readQueue, listener.getInputStream(), getVerbosityOption()));
+        dataReader = new DataReader(readQueue, listener.getInputStream(), getVerbosityOption());
+        dataReader.expectHandshake();
+        readThread = new Thread(dataReader);
         readThread.start();
         // Start error logging thread to capture subprocess stderr in game logs
         errorThread = new Thread(new ErrorLogger(listener.getErrorStream()));
@@ -267,8 +508,103 @@ public class CommunicationMod implements PostInitializeSubscriber, PostUpdateSub
     }
 
     private static void sendGameState() {
-        String state = GameStateConverter.getCommunicationState();
-        sendMessage(state);
+        // A client that just connected has seen neither the base of a delta nor the current map.
+        int connectionId = getConnectionId();
+        if (connectionId != stateConnectionId) {
+            // Subscriptions belong to the client that made them
+            StateProjection.clear();
+            requestFullState();
+            stateConnectionId = connectionId;
+        }
+        if (getDeltaStatesOption()) {
+            // Each delta builds on the one before it, so none of them may be replaced. An unchanged map is already
+            // left out of a delta.
+            StateCapture fullState = GameStateConverter.captureCommunicationState(false);
+            recordTrajectoryState(OutgoingMessage.of(fullState));
+            sendDeltaState(fullState);
+            return;
+        }
+        // States carrying an error or a message must reach the client, so only plain states may be replaced.
+        boolean replaceable = getCoalesceStatesOption() && !GameStateListener.hasError() && !GameStateListener.hasMessage();
+        boolean omitUnchangedMap = getMapOnChangeOption();
+        // Only the values in the state are read here. Turning them into text is left to the writer thread.
+        OutgoingMessage state = getEncodeOffGameThreadOption()
+                ? OutgoingMessage.of(GameStateConverter.captureCommunicationState(omitUnchangedMap))
+                : OutgoingMessage.of(GameStateConverter.getCommunicationState(omitUnchangedMap));
+        // The client would also never see a new map if the state carrying it were replaced.
+        if (omitUnchangedMap && GameStateConverter.didWriteMap()) {
+            replaceable = false;
+        }
+        recordTrajectoryState(state);
+        if (replaceable) {
+            sendReplaceableMessage(state);
+        } else {
+            sendMessage(state);
+        }
+    }
+
+    private static void sendDeltaState(StateCapture state) {
+        if(writeQueue != null && isExternalProcessConnected()) {
+            sendMessage(deltaEncoder.encode(state));
+        }
+    }
+
+    /**
+     * Records a command, or the start command of a run, to the trajectory dataset if one is being written.
+     * @param type TrajectoryWriter.COMMAND or TrajectoryWriter.RUN_START
+     */
+    public static void recordTrajectory(byte type, String command) {
+        if (trajectoryWriter != null) {
+            if (type == TrajectoryWriter.RUN_START) {
+                trajectoryRunOpen = true;
+            }
+            trajectoryWriter.record(type, OutgoingMessage.of(command));
+        }
+    }
+
+    /**
+     * Records a state that is being sent to the trajectory dataset, and the end of the run once it is over.
+     */
+    private static void recordTrajectoryState(OutgoingMessage state) {
+        if (trajectoryWriter == null) {
+            return;
+        }
+        trajectoryWriter.record(TrajectoryWriter.STATE, state);
+        if (trajectoryRunOpen && RunOutcome.isGameOver()) {
+            trajectoryRunOpen = false;
+            trajectoryWriter.recordRunEnd(RunOutcome.isVictory(), RunOutcome.getScore());
+        }
+    }
+
+    /**
+     * Makes the next game state be sent in full, for a client that has lost track of the state versions or the map.
+     */
+    public static void requestFullState() {
+        deltaEncoder.reset();
+        GameStateConverter.resendMap();
+    }
+
+    /**
+     * @return The number of game states that were dropped because a newer state replaced them before they were sent
+     */
+    public static long getElidedStateCount() {
+        return elidedStateCount.get();
+    }
+
+    /**
+     * @return The number of commands received from the external process that have not been executed yet
+     */
+    public static int getReadQueueDepth() {
+        BlockingQueue<String> queue = readQueue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @return The number of messages waiting to be sent to the external process
+     */
+    public static int getWriteQueueDepth() {
+        BlockingQueue<OutgoingMessage> queue = writeQueue;
+        return queue == null ? 0 : queue.size();
     }
 
     public static void dispose() {
@@ -276,12 +612,63 @@ public class CommunicationMod implements PostInitializeSubscriber, PostUpdateSub
         if(listener != null) {
             listener.destroy();
         }
+        stopSocketListener();
+        if (trajectoryThread != null && trajectoryThread.isAlive()) {
+            // The thread is a daemon, so the game would otherwise exit before the last segment has its index
+            try {
+                if (trajectoryWriter.stop(TRAJECTORY_SHUTDOWN_TIMEOUT_MS)) {
+                    trajectoryThread.join(TRAJECTORY_SHUTDOWN_TIMEOUT_MS);
+                }
+                if (trajectoryThread.isAlive()) {
+                    logger.error("Trajectory thread did not finish in time. The last segment may have no index.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (elidedStateCount.get() > 0) {
+            logger.info(String.format("Replaced %d unsent game states with newer ones.", elidedStateCount.get()));
+        }
     }
 
     private static void sendMessage(String message) {
-        if(writeQueue != null && writeThread.isAlive()) {
+        sendMessage(OutgoingMessage.of(message));
+    }
+
+    private static void sendMessage(OutgoingMessage message) {
+        if(writeQueue != null && isExternalProcessConnected()) {
+            writeQueue.add(message);
+            Metrics.recordWriteQueueDepth(writeQueue.size());
+        }
+    }
+
+    /**
+     * Sends a game state that may be dropped if a newer one is sent before the writer thread gets to it.
+     * Removal fails harmlessly if the writer thread has already taken the older state.
+     */
+    private static void sendReplaceableMessage(OutgoingMessage message) {
+        if(writeQueue != null && isExternalProcessConnected()) {
+            if (replaceableState != null && writeQueue.remove(replaceableState)) {
+                elidedStateCount.incrementAndGet();
+            }
+            replaceableState = message;
             writeQueue.add(message);
+            Metrics.recordWriteQueueDepth(writeQueue.size());
+        }
+    }
+
+    private static boolean isExternalProcessConnected() {
+        if(socketListener != null) {
+            return socketListener.isConnected();
+        }
+        return writeThread != null && writeThread.isAlive();
+    }
+
+    private static int getConnectionId() {
+        if(socketListener != null) {
+            return socketListener.getConnectionId();
         }
+        return processConnectionId;
     }
 
     private static boolean messageAvailable() {
@@ -297,8 +684,20 @@ public class CommunicationMod implements PostInitializeSubscriber, PostUpdateSub
     }
 
     private static String readMessageBlocking() {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(getInitializationTimeoutOption());
         try {
-            return readQueue.poll(getInitializationTimeoutOption(), TimeUnit.SECONDS);
+            // Poll in short slices so that a child process which exits without ever signalling does not stall the game
+            // for the whole timeout.
+            while (System.currentTimeMillis() < deadline) {
+                String message = readQueue.poll(HANDSHAKE_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (message != null) {
+                    return message;
+                }
+                if (dataReader != null && dataReader.isEndOfStream() && readQueue.isEmpty()) {
+                    return null;
+                }
+            }
+            return null;
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to read message from subprocess.");
         }
@@ -332,6 +731,139 @@ public class CommunicationMod implements PostInitializeSubscriber, PostUpdateSub
         return (long)communicationConfig.getInt(INITIALIZATION_TIMEOUT_OPTION);
     }
 
+    private static boolean isSocketTransport() {
+        if (communicationConfig == null) {
+            return false;
+        }
+        return SOCKET_TRANSPORT.equalsIgnoreCase(communicationConfig.getString(TRANSPORT_OPTION).trim());
+    }
+
+    private static int getPortOption() {
+        if (communicationConfig == null) {
+            return DEFAULT_PORT;
+        }
+        return communicationConfig.getInt(PORT_OPTION);
+    }
+
+    private static boolean getCoalesceStatesOption() {
+        if (communicationConfig == null) {
+            return false;
+        }
+        return communicationConfig.getBool(COALESCE_STATES_OPTION);
+    }
+
+    private static boolean getDeltaStatesOption() {
+        if (communicationConfig == null) {
+            return false;
+        }
+        return communicationConfig.getBool(DELTA_STATES_OPTION);
+    }
+
+    private static boolean getMapOnChangeOption() {
+        if (communicationConfig == null) {
+            return false;
+        }
+        return communicationConfig.getBool(MAP_ON_CHANGE_OPTION);
+    }
+
+    private static String getCommandLogFileOption() {
+        if (communicationConfig == null) {
+            return "";
+        }
+        return communicationConfig.getString(COMMAND_LOG_FILE_OPTION).trim();
+    }
+
+    private static boolean getCommandLogHashesOption() {
+        if (communicationConfig == null) {
+            return true;
+        }
+        return communicationConfig.getBool(COMMAND_LOG_HASHES_OPTION);
+    }
+
+    private static String getReplayFileOption() {
+        if (communicationConfig == null) {
+            return "";
+        }
+        return communicationConfig.getString(REPLAY_FILE_OPTION).trim();
+    }
+
+    private static String getTrajectoryDirectoryOption() {
+        if (communicationConfig == null) {
+            return "";
+        }
+        return communicationConfig.getString(TRAJECTORY_DIRECTORY_OPTION).trim();
+    }
+
+    private static int getTrajectorySegmentMegabytesOption() {
+        if (communicationConfig == null) {
+            return DEFAULT_TRAJECTORY_SEGMENT_MEGABYTES;
+        }
+        return Math.max(1, communicationConfig.getInt(TRAJECTORY_SEGMENT_OPTION));
+    }
+
+    private static boolean isGzipTrajectoryCompression() {
+        if (communicationConfig == null) {
+            return true;
+        }
+        return !"deflate".equalsIgnoreCase(communicationConfig.getString(TRAJECTORY_COMPRESSION_OPTION).trim());
+    }
+
+    private static String getMetricsFileOption() {
+        if (communicationConfig == null) {
+            return "";
+        }
+        return communicationConfig.getString(METRICS_FILE_OPTION).trim();
+    }
+
+    private static long getMetricsIntervalOption() {
+        if (communicationConfig == null) {
+            return DEFAULT_METRICS_INTERVAL;
+        }
+        return Math.max(1L, (long)communicationConfig.getInt(METRICS_INTERVAL_OPTION));
+    }
+
+    private static boolean getHeadlessOption() {
+        if (communicationConfig == null) {
+            return false;
+        }
+        return communicationConfig.getBool(HEADLESS_OPTION);
+    }
+
+    private static boolean getUncapFrameRateOption() {
+        if (communicationConfig == null) {
+            return false;
+        }
+        return communicationConfig.getBool(UNCAP_FRAME_RATE_OPTION);
+    }
+
+    private static int getUpdatesPerFrameOption() {
+        if (communicationConfig == null) {
+            return 1;
+        }
+        return Math.max(1, communicationConfig.getInt(UPDATES_PER_FRAME_OPTION));
+    }
+
+    private static int getMaxSnapshotsOption() {
+        if (communicationConfig == null) {
+            return DEFAULT_MAX_SNAPSHOTS;
+        }
+        return communicationConfig.getInt(MAX_SNAPSHOTS_OPTION);
+    }
+
+    private static boolean getEncodeOffGameThreadOption() {
+        if (communicationConfig == null) {
+            return true;
+        }
+        return communicationConfig.getBool(ENCODE_OFF_GAME_THREAD_OPTION);
+    }
+
+    private static boolean getFastModeOption() {
+        if (communicationConfig == null) {
+            return false;
+        }
+        return communicationConfig.getBool(FAST_MODE_OPTION);
+    }
+
     private static boolean getVerbosityOption() {
         if (communicationConfig == null) {
             return DEFAULT_VERBOSITY;
@@ -339,7 +871,37 @@ public class CommunicationMod implements PostInitializeSubscriber, PostUpdateSub
         return communicationConfig.getBool(VERBOSE_OPTION);
     }
 
+    private static void startSocketListener() {
+        stopSocketListener();
+        writeQueue = new LinkedBlockingQueue<>();
+        int handshakeTimeout = (int) TimeUnit.SECONDS.toMillis(getInitializationTimeoutOption());
+        socketListener = new SocketListener(getPortOption(), readQueue, writeQueue, getVerbosityOption(), handshakeTimeout);
+        socketThread = new Thread(socketListener);
+        socketThread.setDaemon(true);
+        socketThread.start();
+    }
+
+    private static void stopSocketListener() {
+        if(socketThread != null) {
+            socketThread.interrupt();
+        }
+        if(socketListener != null) {
+            socketListener.shutdown();
+            try {
+                socketThread.join(TimeUnit.SECONDS.toMillis(2));
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        socketListener = null;
+        socketThread = null;
+    }
+
     private boolean startExternalProcess() {
+        if(isSocketTransport()) {
+            startSocketListener();
+            return true;
+        }
         if(readThread != null) {
             readThread.interrupt();
         }
@@ -385,6 +947,10 @@ public class CommunicationMod implements PostInitializeSubscriber, PostUpdateSub
                 return false;
             } else {
                 logger.info(String.format("Received message from external process: %s", message));
+                // Nothing is sent before the handshake, since the game thread waits for it. The reading thread has
+                // already applied the handshake to itself, before reading anything after it.
+                Handshake.parse(message).configure(dataWriter);
+                processConnectionId += 1;
                 if (GameStateListener.isWaitingForCommand()) {
                     mustSendGameState = true;
                 }
@@ -5,15 +5,43 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.concurrent.BlockingQueue;
 
+/**
+ * Reads messages from the external process. Messages are terminated by a newline or a NUL byte and are decoded as
+ * UTF-8. Input is read in large blocks into a reusable buffer, so a burst of commands costs one read call rather than
+ * one per byte. If the external process asks for length-prefixed framing in its ready message, every later message is
+ * instead a 4-byte big-endian length followed by that many bytes, and is read without scanning for a terminator.
+ */
 public class DataReader implements Runnable{
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 4;
+    private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
     private final BlockingQueue<String> queue;
     private final InputStream stream;
     private static final Logger logger = LogManager.getLogger(DataReader.class.getName());
     private boolean verbose;
 
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferStart = 0;
+    private int bufferEnd = 0;
+    // Holds the start of a message whose terminator has not been read yet
+    private byte[] partial = new byte[256];
+    private int partialLength = 0;
+    // Set by run() once every message before the end of the stream has been queued
+    private volatile boolean endOfStream = false;
+    // Set as soon as a read finds the end of the stream, which may be before the last message has been returned
+    private boolean streamEnded = false;
+    // The number of bytes taken from the stream by the last message read, including its terminator
+    private int lastMessageBytes = 0;
+    private volatile boolean lengthPrefixed = false;
+    // Whether the next message read by run() is the ready message, whose options may change the framing
+    private boolean handshakePending = false;
+
     public DataReader (BlockingQueue<String> queue, InputStream stream, boolean verbose) {
         this.queue = queue;
         this.stream = stream;
@@ -22,25 +50,26 @@ public class DataReader implements Runnable{
 
     public void run() {
         while (!Thread.currentThread().isInterrupted()) {
-            StringBuilder inputBuffer = new StringBuilder();
             try {
-                while (true) {
-                    int nextChar = this.stream.read();
-                    if (nextChar == -1) {
-                        continue;
-                    } else if (nextChar == 0 || nextChar == '\n') {
-                        break;
-                    }
-                    inputBuffer.append((char) nextChar);
+                String message = readMessage();
+                if (message == null) {
+                    logger.info("External process closed its output. Shutting down reading thread.");
+                    endOfStream = true;
+                    break;
                 }
-                if (inputBuffer.length() > 0) {
-                    if (verbose) {
-                        logger.info("Received message: " + inputBuffer.toString());
-                    }
-                    queue.put(inputBuffer.toString());
+                if (handshakePending) {
+                    handshakePending = false;
+                    Handshake.parse(message).configure(this);
+                }
+                Metrics.recordMessageReceived(lastMessageBytes);
+                if (verbose) {
+                    logger.info("Received message: " + message);
                 }
+                queue.put(message);
             } catch(IOException e){
                 logger.error("Message could not be received from child process. Shutting down reading thread.");
+                // A frame cut short by the end of the stream is the last thing that will arrive
+                endOfStream = streamEnded;
                 Thread.currentThread().interrupt();
             } catch (InterruptedException e) {
                 logger.info("Communications reading thread interrupted.");
@@ -48,4 +77,169 @@ public class DataReader implements Runnable{
             }
         }
     }
+
+    /**
+     * Makes run() apply the options in the first message it reads. Used when the ready message is read on the
+     * reading thread, since the messages after it may arrive before anyone else has seen it.
+     */
+    public void expectHandshake() {
+        handshakePending = true;
+    }
+
+    /**
+     * Reads every message from now on as a length-prefixed frame.
+     */
+    public void useLengthPrefixedFraming() {
+        lengthPrefixed = true;
+    }
+
+    /**
+     * Only set by run(), after it has queued the last message, so a message that is still being queued is never lost
+     * to a reader that gives up on seeing this.
+     * @return true once the stream has been closed by the other end and no further messages will arrive
+     */
+    public boolean isEndOfStream() {
+        return endOfStream;
+    }
+
+    /**
+     * Blocks until a complete, non-empty message is available.
+     * If the stream ends with an unterminated message, that message is returned before end of stream is reported.
+     * @return The next message, or null if the end of the stream has been reached
+     * @throws IOException If the underlying stream could not be read
+     */
+    public String readMessage() throws IOException {
+        if (lengthPrefixed) {
+            return readFrame();
+        }
+        while (true) {
+            for (int i = bufferStart; i < bufferEnd; i++) {
+                byte next = buffer[i];
+                if (next == '\n' || next == 0) {
+                    lastMessageBytes = partialLength + i - bufferStart + 1;
+                    String message = takeMessage(i);
+                    bufferStart = i + 1;
+                    if (!message.isEmpty()) {
+                        return message;
+                    }
+                }
+            }
+            appendPartial(buffer, bufferStart, bufferEnd - bufferStart);
+            bufferStart = 0;
+            bufferEnd = 0;
+            int bytesRead = stream.read(buffer, 0, buffer.length);
+            if (bytesRead == -1) {
+                streamEnded = true;
+                if (partialLength > 0) {
+                    lastMessageBytes = partialLength;
+                    String message = new String(partial, 0, partialLength, StandardCharsets.UTF_8);
+                    partialLength = 0;
+                    return message;
+                }
+                return null;
+            }
+            bufferEnd = bytesRead;
+        }
+    }
+
+    /**
+     * Reads the next non-empty length-prefixed message. A frame that fits in what has already been read is decoded in
+     * place. Otherwise the rest of it is read straight into the reusable partial buffer, in as few reads as the stream
+     * allows.
+     * @return The next message, or null if the stream ended between frames
+     * @throws IOException If the stream ended part-way through a frame, or a frame is too large
+     */
+    private String readFrame() throws IOException {
+        while (true) {
+            if (!fillBuffer(HEADER_SIZE)) {
+                if (bufferEnd > bufferStart) {
+                    throw new IOException("Stream ended part-way through a frame header.");
+                }
+                return null;
+            }
+            int length = ((buffer[bufferStart] & 0xFF) << 24) | ((buffer[bufferStart + 1] & 0xFF) << 16)
+                    | ((buffer[bufferStart + 2] & 0xFF) << 8) | (buffer[bufferStart + 3] & 0xFF);
+            if (length < 0 || length > MAX_FRAME_SIZE) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            bufferStart += HEADER_SIZE;
+            lastMessageBytes = HEADER_SIZE + length;
+            String message;
+            if (bufferEnd - bufferStart >= length) {
+                message = new String(buffer, bufferStart, length, StandardCharsets.UTF_8);
+                bufferStart += length;
+            } else {
+                if (partial.length < length) {
+                    partial = new byte[Math.max(partial.length * 2, length)];
+                }
+                int buffered = bufferEnd - bufferStart;
+                System.arraycopy(buffer, bufferStart, partial, 0, buffered);
+                bufferStart = 0;
+                bufferEnd = 0;
+                readFully(partial, buffered, length - buffered);
+                message = new String(partial, 0, length, StandardCharsets.UTF_8);
+            }
+            if (!message.isEmpty()) {
+                return message;
+            }
+        }
+    }
+
+    /**
+     * Reads until at least the given number of bytes are buffered, moving what is left to the front of the buffer.
+     * @return false if the stream ended first
+     */
+    private boolean fillBuffer(int count) throws IOException {
+        if (bufferEnd - bufferStart >= count) {
+            return true;
+        }
+        System.arraycopy(buffer, bufferStart, buffer, 0, bufferEnd - bufferStart);
+        bufferEnd -= bufferStart;
+        bufferStart = 0;
+        while (bufferEnd < count) {
+            int bytesRead = stream.read(buffer, bufferEnd, buffer.length - bufferEnd);
+            if (bytesRead == -1) {
+                streamEnded = true;
+                return false;
+            }
+            bufferEnd += bytesRead;
+        }
+        return true;
+    }
+
+    private void readFully(byte[] target, int offset, int length) throws IOException {
+        while (length > 0) {
+            int bytesRead = stream.read(target, offset, length);
+            if (bytesRead == -1) {
+                streamEnded = true;
+                throw new IOException("Stream ended part-way through a frame.");
+            }
+            offset += bytesRead;
+            length -= bytesRead;
+        }
+    }
+
+    /**
+     * Decodes the message ending just before the given buffer index, including any part of it read previously.
+     */
+    private String takeMessage(int end) {
+        if (partialLength == 0) {
+            return new String(buffer, bufferStart, end - bufferStart, StandardCharsets.UTF_8);
+        }
+        appendPartial(buffer, bufferStart, end - bufferStart);
+        String message = new String(partial, 0, partialLength, StandardCharsets.UTF_8);
+        partialLength = 0;
+        return message;
+    }
+
+    private void appendPartial(byte[] source, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        if (partialLength + length > partial.length) {
+            partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + length));
+        }
+        System.arraycopy(source, offset, partial, partialLength, length);
+        partialLength += length;
+    }
 }
@@ -5,39 +5,93 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.BlockingQueue;
 
 public class DataWriter implements Runnable {
 
-    private final BlockingQueue<String> queue;
+    private final BlockingQueue<OutgoingMessage> queue;
     private final OutputStream stream;
     private boolean verbose;
+    // Set once the external process asks for binary messages in its ready message
+    private volatile BinaryStateEncoder binaryEncoder = null;
+    private volatile boolean lengthPrefixed = false;
+    // Reused for every text message, so that each one is handed to the stream in a single write
+    private byte[] frame = new byte[64 * 1024];
     private static final Logger logger = LogManager.getLogger(DataWriter.class.getName());
 
-    public DataWriter(BlockingQueue<String> queue, OutputStream stream, boolean verbose) {
+    public DataWriter(BlockingQueue<OutgoingMessage> queue, OutputStream stream, boolean verbose) {
         this.queue = queue;
         this.stream = stream;
         this.verbose = verbose;
     }
 
+    /**
+     * Sends every message from now on as a length-prefixed binary frame, as described in BinaryStateEncoder.
+     */
+    public void useBinaryEncoding() {
+        binaryEncoder = new BinaryStateEncoder();
+    }
+
+    /**
+     * Sends every text message from now on after a 4-byte big-endian length, rather than ending it with a new line.
+     * Binary messages are always sent this way.
+     */
+    public void useLengthPrefixedFraming() {
+        lengthPrefixed = true;
+    }
+
     public void run() {
-        String message = "";
+        OutgoingMessage message = null;
         while (!Thread.currentThread().isInterrupted()) {
             try {
                 message = this.queue.take();
                 if (verbose) {
-                    logger.info("Sending message: " + message);
+                    logger.info("Sending message: " + message.getText());
+                }
+                BinaryStateEncoder encoder = binaryEncoder;
+                if (encoder != null) {
+                    // A captured state is encoded from its tokens, without being written as text first
+                    byte[] frame = encoder.encodeFrame(message);
+                    stream.write(frame);
+                    stream.flush();
+                    Metrics.recordMessageSent(frame.length);
+                } else {
+                    int frameLength = buildTextFrame(message.getText());
+                    stream.write(frame, 0, frameLength);
+                    stream.flush();
+                    Metrics.recordMessageSent(frameLength);
                 }
-                stream.write(message.getBytes());
-                stream.write('\n');
-                stream.flush();
             } catch (InterruptedException e) {
                 logger.info("Communications writing thread interrupted.");
                 Thread.currentThread().interrupt();
             } catch (IOException e) {
-                logger.error("Message could not be sent to child process: " + message);
+                logger.error("Message could not be sent to child process: " + message.getText());
                 e.printStackTrace();
             }
         }
     }
+
+    /**
+     * Encodes a message and its framing into the reusable frame buffer.
+     * @return The number of bytes in the frame
+     */
+    private int buildTextFrame(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        int frameLength = bytes.length + (lengthPrefixed ? 4 : 1);
+        if (frame.length < frameLength) {
+            frame = new byte[Math.max(frame.length * 2, frameLength)];
+        }
+        if (lengthPrefixed) {
+            frame[0] = (byte) (bytes.length >>> 24);
+            frame[1] = (byte) (bytes.length >>> 16);
+            frame[2] = (byte) (bytes.length >>> 8);
+            frame[3] = (byte) bytes.length;
+            System.arraycopy(bytes, 0, frame, 4, bytes.length);
+        } else {
+            System.arraycopy(bytes, 0, frame, 0, bytes.length);
+            frame[bytes.length] = '\n';
+        }
+        return frameLength;
+    }
 }
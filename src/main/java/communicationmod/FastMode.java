@@ -0,0 +1,126 @@
+package communicationmod;
+
+import com.megacrit.cardcrawl.actions.AbstractGameAction;
+import com.megacrit.cardcrawl.dungeons.AbstractDungeon;
+import com.megacrit.cardcrawl.rooms.AbstractRoom;
+import com.megacrit.cardcrawl.vfx.AbstractGameEffect;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+
+/**
+ * Fast-forwards the animations that state detection waits on. Actions are run down as they tick their duration
+ * (see AbstractGameActionTickPatch), and once a frame, effects that have been updated at least once and the room,
+ * event and fade timers are run down so that they finish on the next frame.
+ * Timers are left with a sliver of time rather than set to zero, because the game only runs the code that ends them
+ * when they go from positive to negative.
+ */
+public class FastMode {
+
+    private static final Logger logger = LogManager.getLogger(FastMode.class.getName());
+    private static final float REMAINING_TIME = 0.0001F;
+    // Private, and also read by the visual stability check, which shares it through getFadeTimer()
+    private static final Field FADE_TIMER_FIELD = findFadeTimerField();
+    // Protected, and read on every tick of every action, so it is looked up once
+    private static final Field ACTION_DURATION_FIELD = StateJson.findDeclaredField(AbstractGameAction.class, "duration");
+
+    private static boolean enabledByConfig = false;
+    private static boolean enabledForRun = false;
+
+    /**
+     * @return true if animations are being fast-forwarded, either for every run or for the current one
+     */
+    public static boolean isEnabled() {
+        return enabledByConfig || enabledForRun;
+    }
+
+    static void setEnabledByConfig(boolean enabled) {
+        enabledByConfig = enabled;
+    }
+
+    /**
+     * Called by the start command, so that each run is fast-forwarded only if it asked to be.
+     */
+    public static void setEnabledForRun(boolean enabled) {
+        enabledForRun = enabled;
+    }
+
+    /**
+     * Runs down the duration of an action, just before it ticks, so that the tick ends it. An action that ticks while
+     * a screen is up has usually just opened it, and does the rest of its work on a later update once the player has
+     * chosen, such as moving the chosen cards. It is left to tick as usual until the screen is closed.
+     */
+    public static void fastForwardAction(AbstractGameAction action) {
+        if (AbstractDungeon.isScreenUp || ACTION_DURATION_FIELD == null) {
+            return;
+        }
+        try {
+            if (ACTION_DURATION_FIELD.getFloat(action) > REMAINING_TIME) {
+                ACTION_DURATION_FIELD.setFloat(action, REMAINING_TIME);
+            }
+        } catch (IllegalAccessException e) {
+            logger.error("Could not fast-forward an action: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs down the effects and timers of the dungeon. Called once per frame, after the dungeon has been updated.
+     */
+    public static void fastForwardDungeon() {
+        // The turn banners are effects too, and clear turnPhaseEffectActive when they finish.
+        fastForwardEffects(AbstractDungeon.effectList);
+        fastForwardEffects(AbstractDungeon.topLevelEffects);
+        if (AbstractRoom.waitTimer > REMAINING_TIME) {
+            AbstractRoom.waitTimer = REMAINING_TIME;
+        }
+        AbstractRoom currentRoom = AbstractDungeon.getCurrRoom();
+        if (currentRoom != null && currentRoom.event != null && currentRoom.event.waitTimer > REMAINING_TIME) {
+            currentRoom.event.waitTimer = REMAINING_TIME;
+        }
+        if ((AbstractDungeon.isFadingIn || AbstractDungeon.isFadingOut) && getFadeTimer() > REMAINING_TIME) {
+            try {
+                FADE_TIMER_FIELD.setFloat(null, REMAINING_TIME);
+            } catch (IllegalAccessException e) {
+                logger.error("Could not fast-forward the dungeon fade: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Effects that have not been updated yet are left alone, so that whatever they do on their first update
+     * still happens. Effects that do nothing with their duration are unaffected.
+     */
+    private static void fastForwardEffects(ArrayList<AbstractGameEffect> effects) {
+        for (AbstractGameEffect effect : effects) {
+            if (effect.duration > 0.0F && effect.duration < effect.startingDuration) {
+                effect.duration = 0.0F;
+            }
+        }
+    }
+
+    /**
+     * @return The time left in the current dungeon fade, or 0 if AbstractDungeon.fadeTimer could not be read
+     */
+    public static float getFadeTimer() {
+        if (FADE_TIMER_FIELD == null) {
+            return 0;
+        }
+        try {
+            return FADE_TIMER_FIELD.getFloat(null);
+        } catch (IllegalAccessException e) {
+            logger.error("Could not read AbstractDungeon.fadeTimer: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    private static Field findFadeTimerField() {
+        Field field = StateJson.findDeclaredField(AbstractDungeon.class, "fadeTimer");
+        if (field == null) {
+            // Without it, the other checks still catch most fades
+            logger.error("Could not find AbstractDungeon.fadeTimer. Fades will not be fast-forwarded or waited on.");
+        }
+        return field;
+    }
+}
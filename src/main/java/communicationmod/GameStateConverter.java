@@ -1,7 +1,7 @@
 package communicationmod;
 
 import basemod.ReflectionHacks;
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import com.megacrit.cardcrawl.actions.GameActionManager;
 import com.megacrit.cardcrawl.cards.AbstractCard;
 import com.megacrit.cardcrawl.characters.AbstractPlayer;
@@ -22,9 +22,6 @@ import com.megacrit.cardcrawl.relics.AbstractRelic;
 import com.megacrit.cardcrawl.relics.RunicDome;
 import com.megacrit.cardcrawl.rewards.RewardItem;
 import com.megacrit.cardcrawl.rooms.*;
-import com.megacrit.cardcrawl.screens.DeathScreen;
-import com.megacrit.cardcrawl.screens.GameOverScreen;
-import com.megacrit.cardcrawl.screens.VictoryScreen;
 import com.megacrit.cardcrawl.screens.select.GridCardSelectScreen;
 import com.megacrit.cardcrawl.shop.ShopScreen;
 import com.megacrit.cardcrawl.shop.StorePotion;
@@ -33,52 +30,192 @@ import com.megacrit.cardcrawl.ui.buttons.LargeDialogOptionButton;
 import com.megacrit.cardcrawl.ui.panels.EnergyPanel;
 import communicationmod.patches.UpdateBodyTextPatch;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
 
+/**
+ * Converts the state of the game to JSON. Everything is written directly to a JsonWriter, so no intermediate
+ * representation of the state is built. Keys that would have a null value are omitted.
+ */
 public class GameStateConverter {
 
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    // Only used from the game thread. Reusing it avoids growing a new buffer for every state.
+    private static final StringWriter stateBuffer = new StringWriter(INITIAL_BUFFER_SIZE);
+
+    // The map only changes between acts and when a room is entered, so its JSON is reused until then.
+    private static String cachedMap = null;
+    private static int cachedMapAct;
+    private static ArrayList<ArrayList<MapRoomNode>> cachedMapSource;
+    private static MapRoomNode cachedMapNode;
+    private static AbstractRoom cachedMapRoom;
+    private static String lastSentMap = null;
+    private static boolean wroteMap = false;
+
     /**
      * Creates a JSON representation of the status of CommunicationMod that will be sent to the external process.
      * The JSON object returned contains:
      * - "available_commands" (list): A list of commands (strings) available to the user
      * - "ready_for_command" (boolean): Denotes whether the game state is stable and ready to receive a command
+     * - "legal_actions" (list): Present if ready_for_command=True, every game action that can be taken, as the command
+     *   that takes it
      * - "in_game" (boolean): True if in the main menu, False if the player is in the dungeon
-     * - "game_state" (object): Present if in_game=True, contains the game state object returned by getGameState()
+     * - "game_state" (object): Present if in_game=True, contains the game state object written by writeGameState()
      * @return A string containing the JSON representation of CommunicationMod's status
      */
     public static String getCommunicationState() {
-        HashMap<String, Object> response = new HashMap<>();
-        response.put("available_commands", CommandExecutor.getAvailableCommands());
-        response.put("ready_for_command", GameStateListener.isWaitingForCommand());
+        return getCommunicationState(false);
+    }
+
+    /**
+     * Creates the same JSON as getCommunicationState(), except that the "map" field of the game state may be left out
+     * when the external process already has the current map.
+     * @param omitUnchangedMap Whether to leave out a map identical to the last one written
+     * @return A string containing the JSON representation of CommunicationMod's status
+     */
+    public static String getCommunicationState(boolean omitUnchangedMap) {
+        long startTime = System.nanoTime();
+        stateBuffer.getBuffer().setLength(0);
+        wroteMap = false;
+        try {
+            JsonWriter writer = newJsonWriter(stateBuffer);
+            writeCommunicationState(writer, omitUnchangedMap);
+            writer.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write game state.", e);
+        }
+        String state = stateBuffer.toString();
+        Metrics.recordTime(Metrics.Timer.GET_COMMUNICATION_STATE, startTime);
+        return state;
+    }
+
+    /**
+     * Captures the same state as getCommunicationState(), without turning it into text. Encoding the capture gives
+     * the same JSON, and can be done on another thread.
+     * @param omitUnchangedMap Whether to leave out a map identical to the last one written
+     * @return The captured state
+     */
+    public static StateCapture captureCommunicationState(boolean omitUnchangedMap) {
+        long startTime = System.nanoTime();
+        wroteMap = false;
+        StateCapture capture = new StateCapture();
+        try {
+            writeCommunicationState(capture, omitUnchangedMap);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not capture game state.", e);
+        }
+        Metrics.recordTime(Metrics.Timer.CAPTURE_STATE, startTime);
+        return capture;
+    }
+
+    /**
+     * Hashes the game state, as written by writeGameState(), for checking that a replayed run has not diverged.
+     * Card uuids are left out, since they are random in every run. The whole state is hashed, whatever the client has
+     * subscribed to, so that a log can be replayed with any subscription. The map is always included, and whether it
+     * was sent is left as it was.
+     * @return The CRC32 of the game state, or -1 if not in a dungeon
+     */
+    public static long hashGameState() {
+        if (!CommandExecutor.isInDungeon()) {
+            return -1;
+        }
+        String sentMap = lastSentMap;
+        boolean sentMapInLastState = wroteMap;
+        StateCapture capture = new StateCapture();
+        StateProjection.setBypassed(true);
+        try {
+            writeGameState(capture, false);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not capture game state.", e);
+        } finally {
+            StateProjection.setBypassed(false);
+            lastSentMap = sentMap;
+            wroteMap = sentMapInLastState;
+        }
+        return capture.hash("uuid");
+    }
+
+    /**
+     * Creates a JsonWriter with the same output settings as a default Gson instance, so that the format of the
+     * messages does not depend on how they were produced.
+     * @param out The destination of the JSON
+     * @return The new JsonWriter
+     */
+    public static JsonWriter newJsonWriter(Writer out) {
+        return StateCapture.newJsonWriter(out);
+    }
+
+    /**
+     * Drops the cached map JSON. Called when a new map is generated.
+     */
+    public static void invalidateMapCache() {
+        cachedMap = null;
+    }
+
+    /**
+     * Makes the next game state include the map, even if it is unchanged.
+     */
+    public static void resendMap() {
+        lastSentMap = null;
+    }
+
+    /**
+     * @return true if the last state created by getCommunicationState() included the map
+     */
+    public static boolean didWriteMap() {
+        return wroteMap;
+    }
+
+    /**
+     * Writes the object described by getCommunicationState().
+     * @param writer The writer to write the object to
+     * @param omitUnchangedMap Whether to leave out a map identical to the last one written
+     */
+    public static void writeCommunicationState(JsonWriter writer, boolean omitUnchangedMap) throws IOException {
+        writer.beginObject();
+        writer.name("available_commands");
+        writeStringList(writer, CommandExecutor.getAvailableCommands());
+        boolean readyForCommand = GameStateListener.isWaitingForCommand();
+        if (readyForCommand) {
+            Metrics.recordReadyForCommand();
+        }
+        writer.name("ready_for_command").value(readyForCommand);
+        if (readyForCommand) {
+            writer.name("legal_actions");
+            writeStringList(writer, LegalActions.get());
+        }
         boolean isInGame = CommandExecutor.isInDungeon();
-        response.put("in_game", isInGame);
+        writer.name("in_game").value(isInGame);
         if(isInGame) {
-            response.put("game_state", getGameState());
+            writer.name("game_state");
+            writeGameState(writer, omitUnchangedMap);
         }
         // Include error if present
         String error = GameStateListener.getAndClearError();
         if (error != null) {
-            response.put("error", error);
+            writer.name("error").value(error);
         }
         // Include message if present (used by commands to return data)
         String message = GameStateListener.getAndClearMessage();
         if (message != null) {
-            response.put("message", message);
+            writer.name("message").value(message);
         }
-        Gson gson = new Gson();
-        return gson.toJson(response);
+        writer.endObject();
     }
 
 
     /**
-     * Creates a JSON representation of the game state, which will be sent to the client.
+     * Writes a JSON representation of the game state, which will be sent to the client.
      * Always present:
      * - "screen_name" (string): The name of the Enum representing the current screen (defined by Mega Crit)
      * - "is_screen_up" (boolean): The game's isScreenUp variable
      * - "screen_type" (string): The type of screen (or decision) that the user if facing (defined by Communication Mod)
-     * - "screen_state" (object): The state of the current state, see getScreenState() (as defined by Communication Mod)
+     * - "screen_state" (object): The state of the current state, see writeScreenState() (as defined by Communication Mod)
      * - "room_phase" (string): The phase of the current room (COMBAT, EVENT, etc.)
      * - "action_phase" (string): The phase of the action manager (WAITING_FOR_USER_INPUT, EXECUTING_ACTIONS)
      * - "room_type" (string): The name of the class of the current room (ShopRoom, TreasureRoom, MonsterRoom, etc.)
@@ -94,89 +231,136 @@ public class GameStateConverter {
      * - "relics" (list): A list of the player's current relics
      * - "deck" (list): A list of the cards in the player's deck
      * - "potions" (list): A list of the player's potions (empty slots are PotionSlots)
-     * - "map" (list): The current dungeon map
      * - "keys" (object): Contains booleans for each of the three keys to reach Act 4
      * Sometimes present:
+     * - "map" (list): The current dungeon map, unless omitUnchangedMap is set and the map has not changed
      * - "current_action" (list): The class name of the action in the action manager queue, if not empty
      * - "combat_state" (list): The state of the combat (draw pile, monsters, etc.)
      * - "choice_list" (list): If the command is available, the possible choices for the choose command
-     * @return A HashMap encoding the JSON representation of the game state
+     * After a subscribe command, only the subscribed fields are written. See StateProjection.
+     * @param writer The writer to write the game state object to
+     * @param omitUnchangedMap Whether to leave out a map identical to the last one written
      */
-    private static HashMap<String, Object> getGameState() {
-        HashMap<String, Object> state = new HashMap<>();
+    private static void writeGameState(JsonWriter writer, boolean omitUnchangedMap) throws IOException {
+        writer.beginObject();
 
-        state.put("screen_name", AbstractDungeon.screen.name());
-        state.put("is_screen_up", AbstractDungeon.isScreenUp);
-        state.put("screen_type", ChoiceScreenUtils.getCurrentChoiceType());
-        state.put("room_phase", AbstractDungeon.getCurrRoom().phase.toString());
-        state.put("action_phase", AbstractDungeon.actionManager.phase.toString());
-        if(AbstractDungeon.actionManager.currentAction != null) {
-            state.put("current_action", AbstractDungeon.actionManager.currentAction.getClass().getSimpleName());
+        if(StateProjection.includes("screen_name")) {
+            writer.name("screen_name").value(AbstractDungeon.screen.name());
         }
-        state.put("room_type", AbstractDungeon.getCurrRoom().getClass().getSimpleName());
-        state.put("current_hp", AbstractDungeon.player.currentHealth);
-        state.put("max_hp", AbstractDungeon.player.maxHealth);
-        state.put("floor", AbstractDungeon.floorNum);
-        state.put("act", AbstractDungeon.actNum);
-        state.put("act_boss", AbstractDungeon.bossKey);
-        state.put("gold", AbstractDungeon.player.gold);
-        state.put("seed", Settings.seed);
-        state.put("class", AbstractDungeon.player.chosenClass.name());
-        state.put("ascension_level", AbstractDungeon.ascensionLevel);
-
-        ArrayList<Object> relics = new ArrayList<>();
-        for(AbstractRelic relic : AbstractDungeon.player.relics) {
-            relics.add(convertRelicToJson(relic));
+        if(StateProjection.includes("is_screen_up")) {
+            writer.name("is_screen_up").value(AbstractDungeon.isScreenUp);
         }
-
-        state.put("relics", relics);
-
-        ArrayList<Object> deck = new ArrayList<>();
-        for(AbstractCard card : AbstractDungeon.player.masterDeck.group) {
-            deck.add(convertCardToJson(card));
+        if(StateProjection.includes("screen_type")) {
+            writer.name("screen_type").value(CommandExecutor.getCurrentChoiceType().name());
+        }
+        if(StateProjection.includes("room_phase")) {
+            writer.name("room_phase").value(AbstractDungeon.getCurrRoom().phase.toString());
+        }
+        if(StateProjection.includes("action_phase")) {
+            writer.name("action_phase").value(AbstractDungeon.actionManager.phase.toString());
+        }
+        if(AbstractDungeon.actionManager.currentAction != null && StateProjection.includes("current_action")) {
+            writer.name("current_action").value(AbstractDungeon.actionManager.currentAction.getClass().getSimpleName());
+        }
+        if(StateProjection.includes("room_type")) {
+            writer.name("room_type").value(AbstractDungeon.getCurrRoom().getClass().getSimpleName());
+        }
+        if(StateProjection.includes("current_hp")) {
+            writer.name("current_hp").value(AbstractDungeon.player.currentHealth);
+        }
+        if(StateProjection.includes("max_hp")) {
+            writer.name("max_hp").value(AbstractDungeon.player.maxHealth);
+        }
+        if(StateProjection.includes("floor")) {
+            writer.name("floor").value(AbstractDungeon.floorNum);
+        }
+        if(StateProjection.includes("act")) {
+            writer.name("act").value(AbstractDungeon.actNum);
+        }
+        if(StateProjection.includes("act_boss")) {
+            writer.name("act_boss").value(AbstractDungeon.bossKey);
+        }
+        if(StateProjection.includes("gold")) {
+            writer.name("gold").value(AbstractDungeon.player.gold);
+        }
+        if(StateProjection.includes("seed")) {
+            writer.name("seed").value(Settings.seed);
+        }
+        if(StateProjection.includes("class")) {
+            writer.name("class").value(AbstractDungeon.player.chosenClass.name());
+        }
+        if(StateProjection.includes("ascension_level")) {
+            writer.name("ascension_level").value(AbstractDungeon.ascensionLevel);
         }
 
-        state.put("deck", deck);
+        if(StateProjection.includes("relics")) {
+            writer.name("relics").beginArray();
+            for(AbstractRelic relic : AbstractDungeon.player.relics) {
+                writeRelic(writer, relic);
+            }
+            writer.endArray();
+        }
 
-        ArrayList<Object> potions = new ArrayList<>();
-        for(AbstractPotion potion : AbstractDungeon.player.potions) {
-            potions.add(convertPotionToJson(potion));
+        if(StateProjection.includes("deck")) {
+            writer.name("deck");
+            writeCardList(writer, AbstractDungeon.player.masterDeck.group);
         }
 
-        state.put("potions", potions);
+        if(StateProjection.includes("potions")) {
+            writer.name("potions").beginArray();
+            for(AbstractPotion potion : AbstractDungeon.player.potions) {
+                writePotion(writer, potion);
+            }
+            writer.endArray();
+        }
 
-        state.put("map", convertMapToJson());
-        if(CommandExecutor.isChooseCommandAvailable()) {
-            state.put("choice_list", ChoiceScreenUtils.getCurrentChoiceList());
+        if(StateProjection.includes("map")) {
+            String map = getMapJson();
+            if(!omitUnchangedMap || map != lastSentMap) {
+                writer.name("map").jsonValue(map);
+                lastSentMap = map;
+                wroteMap = true;
+            }
+        }
+        if(CommandExecutor.isChooseCommandAvailable() && StateProjection.includes("choice_list")) {
+            writer.name("choice_list");
+            writeStringList(writer, CommandExecutor.getCurrentChoiceList());
         }
-        if(AbstractDungeon.getCurrRoom().phase.equals(AbstractRoom.RoomPhase.COMBAT)) {
-            state.put("combat_state", getCombatState());
+        if(AbstractDungeon.getCurrRoom().phase.equals(AbstractRoom.RoomPhase.COMBAT) && StateProjection.includes("combat_state")) {
+            writer.name("combat_state");
+            writeCombatState(writer);
+        }
+        if(StateProjection.includes("screen_state")) {
+            writer.name("screen_state");
+            writeScreenState(writer);
         }
-        state.put("screen_state", getScreenState());
 
-        HashMap<String, Boolean> keys = new HashMap<>();
-        keys.put("ruby", Settings.hasRubyKey);
-        keys.put("emerald", Settings.hasEmeraldKey);
-        keys.put("sapphire", Settings.hasSapphireKey);
-        state.put("keys", keys);
+        if(StateProjection.includes("keys")) {
+            writer.name("keys").beginObject();
+            writer.name("ruby").value(Settings.hasRubyKey);
+            writer.name("emerald").value(Settings.hasEmeraldKey);
+            writer.name("sapphire").value(Settings.hasSapphireKey);
+            writer.endObject();
+        }
 
-        return state;
+        writer.endObject();
     }
 
-    private static HashMap<String, Object> getRoomState() {
+    private static void writeRoomState(JsonWriter writer) throws IOException {
         AbstractRoom currentRoom = AbstractDungeon.getCurrRoom();
-        HashMap<String, Object> state = new HashMap<>();
+        writer.beginObject();
         if(currentRoom instanceof TreasureRoom) {
-            state.put("chest_type", ((TreasureRoom)currentRoom).chest.getClass().getSimpleName());
-            state.put("chest_open", ((TreasureRoom) currentRoom).chest.isOpen);
+            writer.name("chest_type").value(((TreasureRoom)currentRoom).chest.getClass().getSimpleName());
+            writer.name("chest_open").value(((TreasureRoom) currentRoom).chest.isOpen);
         } else if(currentRoom instanceof TreasureRoomBoss) {
-            state.put("chest_type", ((TreasureRoomBoss)currentRoom).chest.getClass().getSimpleName());
-            state.put("chest_open", ((TreasureRoomBoss) currentRoom).chest.isOpen);
+            writer.name("chest_type").value(((TreasureRoomBoss)currentRoom).chest.getClass().getSimpleName());
+            writer.name("chest_open").value(((TreasureRoomBoss) currentRoom).chest.isOpen);
         } else if(currentRoom instanceof RestRoom) {
-            state.put("has_rested", currentRoom.phase == AbstractRoom.RoomPhase.COMPLETE);
-            state.put("rest_options", ChoiceScreenUtils.getRestRoomChoices());
+            writer.name("has_rested").value(currentRoom.phase == AbstractRoom.RoomPhase.COMPLETE);
+            writer.name("rest_options");
+            writeStringList(writer, ChoiceScreenUtils.getRestRoomChoices());
         }
-        return state;
+        writer.endObject();
     }
 
     /**
@@ -201,54 +385,51 @@ public class GameStateConverter {
      * - "disabled" (boolean): Whether the current option or button is disabled. Disabled buttons cannot be chosen
      * - "label" (string): The simple label of a button or option (Eg. "Banana")
      * - "choice_index" (int): The index of the option for the choose command, if applicable
-     * @return The event state object
+     * @param writer The writer to write the event state object to
      */
-    private static HashMap<String, Object> getEventState() {
-        HashMap<String, Object> state = new HashMap<>();
-        ArrayList<Object> options = new ArrayList<>();
+    private static void writeEventState(JsonWriter writer) throws IOException {
+        writer.beginObject();
         ChoiceScreenUtils.EventDialogType eventDialogType = ChoiceScreenUtils.getEventDialogType();
         AbstractEvent event = AbstractDungeon.getCurrRoom().event;
         int choice_index = 0;
+        writer.name("options").beginArray();
         if (eventDialogType == ChoiceScreenUtils.EventDialogType.IMAGE || eventDialogType == ChoiceScreenUtils.EventDialogType.ROOM) {
             for (LargeDialogOptionButton button : ChoiceScreenUtils.getEventButtons()) {
-                HashMap<String, Object> json_button = new HashMap<>();
-                json_button.put("text", removeTextFormatting(button.msg));
-                json_button.put("disabled", button.isDisabled);
-                json_button.put("label", ChoiceScreenUtils.getOptionName(button.msg));
+                writer.beginObject();
+                writer.name("text").value(removeTextFormatting(button.msg));
+                writer.name("disabled").value(button.isDisabled);
+                writer.name("label").value(ChoiceScreenUtils.getOptionName(button.msg));
                 if (!button.isDisabled) {
-                    json_button.put("choice_index", choice_index);
+                    writer.name("choice_index").value(choice_index);
                     choice_index += 1;
                 }
-                options.add(json_button);
+                writer.endObject();
             }
-            state.put("body_text", removeTextFormatting(UpdateBodyTextPatch.bodyText));
         } else {
             for (String misc_option : ChoiceScreenUtils.getEventScreenChoices()) {
-                HashMap<String, Object> json_button = new HashMap<>();
-                json_button.put("text", misc_option);
-                json_button.put("disabled", false);
-                json_button.put("label", misc_option);
-                json_button.put("choice_index", choice_index);
+                writer.beginObject();
+                writer.name("text").value(misc_option);
+                writer.name("disabled").value(false);
+                writer.name("label").value(misc_option);
+                writer.name("choice_index").value(choice_index);
                 choice_index += 1;
-                options.add(json_button);
+                writer.endObject();
             }
-            state.put("body_text", "");
         }
-        state.put("event_name", ReflectionHacks.getPrivateStatic(event.getClass(), "NAME"));
+        writer.endArray();
+        if (eventDialogType == ChoiceScreenUtils.EventDialogType.IMAGE || eventDialogType == ChoiceScreenUtils.EventDialogType.ROOM) {
+            writer.name("body_text").value(removeTextFormatting(UpdateBodyTextPatch.bodyText));
+        } else {
+            writer.name("body_text").value("");
+        }
+        writer.name("event_name").value((String) ReflectionHacks.getPrivateStatic(event.getClass(), "NAME"));
         if (event instanceof NeowEvent) {
-            state.put("event_id", "Neow Event");
+            writer.name("event_id").value("Neow Event");
         } else {
-            try {
-                // AbstractEvent does not have a static "ID" field, but all of the events in the base game do.
-                Field targetField = event.getClass().getDeclaredField("ID");
-                state.put("event_id", (String)targetField.get(null));
-            } catch (NoSuchFieldException | IllegalAccessException e) {
-                state.put("event_id", "");
-            }
-            state.put("event_id", ReflectionHacks.getPrivateStatic(event.getClass(), "ID"));
+            // AbstractEvent does not have a static "ID" field, but all of the events in the base game do.
+            writer.name("event_id").value((String) ReflectionHacks.getPrivateStatic(event.getClass(), "ID"));
         }
-        state.put("options", options);
-        return state;
+        writer.endObject();
     }
 
     /**
@@ -256,18 +437,15 @@ public class GameStateConverter {
      * "bowl_available" (boolean): Whether the Singing Bowl button is present
      * "skip_available" (boolean): Whether the card reward is skippable
      * "cards" (list): The list of cards that can be chosen
-     * @return The card reward state object
+     * @param writer The writer to write the card reward state object to
      */
-    private static HashMap<String, Object> getCardRewardState() {
-        HashMap<String, Object> state = new HashMap<>();
-        state.put("bowl_available", ChoiceScreenUtils.isBowlAvailable());
-        state.put("skip_available", ChoiceScreenUtils.isCardRewardSkipAvailable());
-        ArrayList<Object> cardRewardJson = new ArrayList<>();
-        for(AbstractCard card : AbstractDungeon.cardRewardScreen.rewardGroup) {
-            cardRewardJson.add(convertCardToJson(card));
-        }
-        state.put("cards", cardRewardJson);
-        return state;
+    private static void writeCardRewardState(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("bowl_available").value(ChoiceScreenUtils.isBowlAvailable());
+        writer.name("skip_available").value(ChoiceScreenUtils.isCardRewardSkipAvailable());
+        writer.name("cards");
+        writeCardList(writer, AbstractDungeon.cardRewardScreen.rewardGroup);
+        writer.endObject();
     }
 
     /**
@@ -278,32 +456,35 @@ public class GameStateConverter {
      * - "relic" (object): The relic in the reward, if applicable
      * - "potion" (object): The potion in the reward, if applicable
      * - "link" (object): The relic that the sapphire key is linked to, if applicable
-     * @return The combat reward screen state object
+     * @param writer The writer to write the combat reward screen state object to
      */
-    private static HashMap<String, Object> getCombatRewardState() {
-        HashMap<String, Object> state = new HashMap<>();
-        ArrayList<Object> rewards = new ArrayList<>();
+    private static void writeCombatRewardState(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("rewards").beginArray();
         for(RewardItem reward : AbstractDungeon.combatRewardScreen.rewards) {
-            HashMap<String, Object> jsonReward = new HashMap<>();
-            jsonReward.put("reward_type", reward.type.name());
+            writer.beginObject();
+            writer.name("reward_type").value(reward.type.name());
             switch(reward.type) {
                 case GOLD:
                 case STOLEN_GOLD:
-                    jsonReward.put("gold", reward.goldAmt + reward.bonusGold);
+                    writer.name("gold").value(reward.goldAmt + reward.bonusGold);
                     break;
                 case RELIC:
-                    jsonReward.put("relic", convertRelicToJson(reward.relic));
+                    writer.name("relic");
+                    writeRelic(writer, reward.relic);
                     break;
                 case POTION:
-                    jsonReward.put("potion", convertPotionToJson(reward.potion));
+                    writer.name("potion");
+                    writePotion(writer, reward.potion);
                     break;
                 case SAPPHIRE_KEY:
-                    jsonReward.put("link", convertRelicToJson(reward.relicLink.relic));
+                    writer.name("link");
+                    writeRelic(writer, reward.relicLink.relic);
             }
-            rewards.add(jsonReward);
+            writer.endObject();
         }
-        state.put("rewards", rewards);
-        return state;
+        writer.endArray();
+        writer.endObject();
     }
 
     /**
@@ -312,37 +493,38 @@ public class GameStateConverter {
      * "next_nodes" (list): A list of nodes that can be chosen next
      * "first_node_chosen" (boolean): Whether the first node in the act has already been chosen
      * "boss_available" (boolean): Whether the next node choice is a boss
-     * @return The map screen state object
+     * @param writer The writer to write the map screen state object to
      */
-    private static HashMap<String, Object> getMapScreenState() {
-        HashMap<String, Object> state = new HashMap<>();
+    private static void writeMapScreenState(JsonWriter writer) throws IOException {
+        writer.beginObject();
         if (AbstractDungeon.getCurrMapNode() != null) {
-            state.put("current_node", convertMapRoomNodeToJson(AbstractDungeon.getCurrMapNode()));
+            writer.name("current_node");
+            writeMapRoomNode(writer, AbstractDungeon.getCurrMapNode());
         }
-        ArrayList<Object> nextNodesJson = new ArrayList<>();
+        writer.name("next_nodes").beginArray();
         for(MapRoomNode node : ChoiceScreenUtils.getMapScreenNodeChoices()) {
-            nextNodesJson.add(convertMapRoomNodeToJson(node));
+            writeMapRoomNode(writer, node);
         }
-        state.put("next_nodes", nextNodesJson);
-        state.put("first_node_chosen", AbstractDungeon.firstRoomChosen);
-        state.put("boss_available", ChoiceScreenUtils.bossNodeAvailable());
-        return state;
+        writer.endArray();
+        writer.name("first_node_chosen").value(AbstractDungeon.firstRoomChosen);
+        writer.name("boss_available").value(ChoiceScreenUtils.bossNodeAvailable());
+        writer.endObject();
     }
 
     /**
      * The boss reward screen state contains:
      * "relics" (list): A list of relics that can be chosen from the boss
      * Note: Blights are not supported.
-     * @return The boss reward screen state object
+     * @param writer The writer to write the boss reward screen state object to
      */
-    private static HashMap<String, Object> getBossRewardState() {
-        HashMap<String, Object> state = new HashMap<>();
-        ArrayList<Object> bossRelics = new ArrayList<>();
+    private static void writeBossRewardState(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("relics").beginArray();
         for(AbstractRelic relic : AbstractDungeon.bossRelicScreen.relics) {
-            bossRelics.add(convertRelicToJson(relic));
+            writeRelic(writer, relic);
         }
-        state.put("relics", bossRelics);
-        return state;
+        writer.endArray();
+        writer.endObject();
     }
 
     /**
@@ -352,34 +534,37 @@ public class GameStateConverter {
      * "potions" (list): A list of potions available to buy
      * "purge_available" (boolean): Whether the card remove option is available
      * "purge_cost" (int): The cost of the card remove option
-     * @return The shop screen state object
+     * @param writer The writer to write the shop screen state object to
      */
-    private static HashMap<String, Object> getShopScreenState() {
-        HashMap<String, Object> state = new HashMap<>();
-        ArrayList<Object> shopCards = new ArrayList<>();
-        ArrayList<Object> shopRelics = new ArrayList<>();
-        ArrayList<Object> shopPotions = new ArrayList<>();
+    private static void writeShopScreenState(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("cards").beginArray();
         for(AbstractCard card : ChoiceScreenUtils.getShopScreenCards()) {
-            HashMap<String, Object> jsonCard = convertCardToJson(card);
-            jsonCard.put("price", card.price);
-            shopCards.add(jsonCard);
+            writer.beginObject();
+            writeCardFields(writer, card);
+            writer.name("price").value(card.price);
+            writer.endObject();
         }
+        writer.endArray();
+        writer.name("relics").beginArray();
         for(StoreRelic relic : ChoiceScreenUtils.getShopScreenRelics()) {
-            HashMap<String, Object> jsonRelic = convertRelicToJson(relic.relic);
-            jsonRelic.put("price", relic.price);
-            shopRelics.add(jsonRelic);
+            writer.beginObject();
+            writeRelicFields(writer, relic.relic);
+            writer.name("price").value(relic.price);
+            writer.endObject();
         }
+        writer.endArray();
+        writer.name("potions").beginArray();
         for(StorePotion potion : ChoiceScreenUtils.getShopScreenPotions()) {
-            HashMap<String, Object> jsonPotion = convertPotionToJson(potion.potion);
-            jsonPotion.put("price", potion.price);
-            shopPotions.add(jsonPotion);
-        }
-        state.put("cards", shopCards);
-        state.put("relics", shopRelics);
-        state.put("potions", shopPotions);
-        state.put("purge_available", AbstractDungeon.shopScreen.purgeAvailable);
-        state.put("purge_cost", ShopScreen.actualPurgeCost);
-        return state;
+            writer.beginObject();
+            writePotionFields(writer, potion.potion);
+            writer.name("price").value(potion.price);
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.name("purge_available").value(AbstractDungeon.shopScreen.purgeAvailable);
+        writer.name("purge_cost").value(ShopScreen.actualPurgeCost);
+        writer.endObject();
     }
 
     /**
@@ -392,33 +577,26 @@ public class GameStateConverter {
      * "for_transform" (boolean): Whether the selected cards will be transformed
      * _for_purge" (boolean): Whether the selected cards will be removed from the deck
      * "confirm_up" (boolean): Whether the confirm screen is up, and cards cannot be selected
-     * @return The grid select screen state object
+     * @param writer The writer to write the grid select screen state object to
      */
-    private static HashMap<String, Object> getGridState() {
-        HashMap<String, Object> state = new HashMap<>();
-        ArrayList<Object> gridJson = new ArrayList<>();
-        ArrayList<Object> gridSelectedJson = new ArrayList<>();
-        ArrayList<AbstractCard> gridCards = ChoiceScreenUtils.getGridScreenCards();
+    private static void writeGridState(JsonWriter writer) throws IOException {
         GridCardSelectScreen screen = AbstractDungeon.gridSelectScreen;
-        for(AbstractCard card : gridCards) {
-            gridJson.add(convertCardToJson(card));
-        }
-        for(AbstractCard card : screen.selectedCards) {
-            gridSelectedJson.add(convertCardToJson(card));
-        }
         int numCards = (int) ReflectionHacks.getPrivate(screen, GridCardSelectScreen.class, "numCards");
         boolean forUpgrade = (boolean) ReflectionHacks.getPrivate(screen, GridCardSelectScreen.class, "forUpgrade");
         boolean forTransform = (boolean) ReflectionHacks.getPrivate(screen, GridCardSelectScreen.class, "forTransform");
         boolean forPurge = (boolean) ReflectionHacks.getPrivate(screen, GridCardSelectScreen.class, "forPurge");
-        state.put("cards", gridJson);
-        state.put("selected_cards", gridSelectedJson);
-        state.put("num_cards", numCards);
-        state.put("any_number", screen.anyNumber);
-        state.put("for_upgrade", forUpgrade);
-        state.put("for_transform", forTransform);
-        state.put("for_purge", forPurge);
-        state.put("confirm_up", screen.confirmScreenUp || screen.isJustForConfirming);
-        return state;
+        writer.beginObject();
+        writer.name("cards");
+        writeCardList(writer, ChoiceScreenUtils.getGridScreenCards());
+        writer.name("selected_cards");
+        writeCardList(writer, screen.selectedCards);
+        writer.name("num_cards").value(numCards);
+        writer.name("any_number").value(screen.anyNumber);
+        writer.name("for_upgrade").value(forUpgrade);
+        writer.name("for_transform").value(forTransform);
+        writer.name("for_purge").value(forPurge);
+        writer.name("confirm_up").value(screen.confirmScreenUp || screen.isJustForConfirming);
+        writer.endObject();
     }
 
     /**
@@ -427,85 +605,77 @@ public class GameStateConverter {
      * "selected" (list): The list of currently selected cards
      * "max_cards" (int): The maximum number of cards that can be selected
      * "can_pick_zero" (boolean): Whether zero cards can be selected
-     * @return The hand select screen state object
-     */
-    private static HashMap<String, Object> getHandSelectState() {
-        HashMap<String, Object> state = new HashMap<>();
-        ArrayList<Object> handJson = new ArrayList<>();
-        ArrayList<Object> selectedJson = new ArrayList<>();
-        ArrayList<AbstractCard> handCards = AbstractDungeon.player.hand.group;
-        // As far as I can tell, this comment is a Java 8 analogue of a Python list comprehension? I think just looping is more readable.
-        // handJson = handCards.stream().map(GameStateConverter::convertCardToJson).collect(Collectors.toCollection(ArrayList::new));
-        for(AbstractCard card : handCards) {
-            handJson.add(convertCardToJson(card));
-        }
-        state.put("hand", handJson);
-        ArrayList<AbstractCard> selectedCards = AbstractDungeon.handCardSelectScreen.selectedCards.group;
-        for(AbstractCard card : selectedCards) {
-            selectedJson.add(convertCardToJson(card));
-        }
-        state.put("selected", selectedJson);
-        state.put("max_cards", AbstractDungeon.handCardSelectScreen.numCardsToSelect);
-        state.put("can_pick_zero", AbstractDungeon.handCardSelectScreen.canPickZero);
-        return state;
+     * @param writer The writer to write the hand select screen state object to
+     */
+    private static void writeHandSelectState(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("hand");
+        writeCardList(writer, AbstractDungeon.player.hand.group);
+        writer.name("selected");
+        writeCardList(writer, AbstractDungeon.handCardSelectScreen.selectedCards.group);
+        writer.name("max_cards").value(AbstractDungeon.handCardSelectScreen.numCardsToSelect);
+        writer.name("can_pick_zero").value(AbstractDungeon.handCardSelectScreen.canPickZero);
+        writer.endObject();
     }
 
     /**
      * The game over screen state contains:
      * "score" (int): Your final score
      * "victory" (boolean): Whether you won
-     * @return The game over screen state object
-     */
-    private static HashMap<String, Object> getGameOverState() {
-        HashMap<String, Object> state = new HashMap<>();
-        int score = 0;
-        boolean victory = false;
-        if(AbstractDungeon.screen == AbstractDungeon.CurrentScreen.DEATH) {
-            score = (int) ReflectionHacks.getPrivate(AbstractDungeon.deathScreen, GameOverScreen.class, "score");
-            victory = GameOverScreen.isVictory;
-        } else if(AbstractDungeon.screen == AbstractDungeon.CurrentScreen.VICTORY) {
-            score = (int) ReflectionHacks.getPrivate(AbstractDungeon.victoryScreen, GameOverScreen.class, "score");
-            victory = true;
-        }
-        state.put("score", score);
-        state.put("victory", victory);
-        return state;
+     * @param writer The writer to write the game over screen state object to
+     */
+    private static void writeGameOverState(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("score").value(RunOutcome.getScore());
+        writer.name("victory").value(RunOutcome.isVictory());
+        writer.endObject();
     }
 
     /**
-     * Gets the appropriate screen state object
-     * @return An object containing your current screen state
+     * Writes the appropriate screen state object
+     * @param writer The writer to write the object containing your current screen state to
      */
-    private static HashMap<String, Object> getScreenState() {
-        ChoiceScreenUtils.ChoiceType screenType = ChoiceScreenUtils.getCurrentChoiceType();
+    private static void writeScreenState(JsonWriter writer) throws IOException {
+        ChoiceScreenUtils.ChoiceType screenType = CommandExecutor.getCurrentChoiceType();
         switch (screenType) {
             case EVENT:
-                return getEventState();
+                writeEventState(writer);
+                return;
             case CHEST:
             case REST:
-                return getRoomState();
+                writeRoomState(writer);
+                return;
             case CARD_REWARD:
-                return getCardRewardState();
+                writeCardRewardState(writer);
+                return;
             case COMBAT_REWARD:
-                return getCombatRewardState();
+                writeCombatRewardState(writer);
+                return;
             case MAP:
-                return getMapScreenState();
+                writeMapScreenState(writer);
+                return;
             case BOSS_REWARD:
-                return getBossRewardState();
+                writeBossRewardState(writer);
+                return;
             case SHOP_SCREEN:
-                return getShopScreenState();
+                writeShopScreenState(writer);
+                return;
             case GRID:
-                return getGridState();
+                writeGridState(writer);
+                return;
             case HAND_SELECT:
-                return getHandSelectState();
+                writeHandSelectState(writer);
+                return;
             case GAME_OVER:
-                return getGameOverState();
+                writeGameOverState(writer);
+                return;
         }
-        return new HashMap<>();
+        writer.beginObject();
+        writer.endObject();
     }
 
     /**
-     * Gets the state of the current combat in game.
+     * Writes the state of the current combat in game.
      * The combat state object contains:
      * "draw_pile" (list): The list of cards in your draw pile
      * "discard_pile" (list): The list of cards in your discard pile
@@ -519,109 +689,153 @@ public class GameStateConverter {
      * "cards_discarded_this_turn" (int): The number of cards discarded this turn.
      * "times_damaged" (int): The number of times the player has been damaged this combat (for Blood for Blood).
      * Note: The order of the draw pile is not currently randomized when sent to the client.
-     * @return The combat state object
-     */
-    private static HashMap<String, Object> getCombatState() {
-        HashMap<String, Object> state = new HashMap<>();
-        ArrayList<Object> monsters = new ArrayList<>();
-        for(AbstractMonster monster : AbstractDungeon.getCurrRoom().monsters.monsters) {
-            monsters.add(convertMonsterToJson(monster));
-        }
-        state.put("monsters", monsters);
-        ArrayList<Object> draw_pile = new ArrayList<>();
-        for(AbstractCard card : AbstractDungeon.player.drawPile.group) {
-            draw_pile.add(convertCardToJson(card));
-        }
-        ArrayList<Object> discard_pile = new ArrayList<>();
-        for(AbstractCard card : AbstractDungeon.player.discardPile.group) {
-            discard_pile.add(convertCardToJson(card));
-        }
-        ArrayList<Object> exhaust_pile = new ArrayList<>();
-        for(AbstractCard card : AbstractDungeon.player.exhaustPile.group) {
-            exhaust_pile.add(convertCardToJson(card));
-        }
-        ArrayList<Object> hand = new ArrayList<>();
-        for(AbstractCard card : AbstractDungeon.player.hand.group) {
-            hand.add(convertCardToJson(card));
-        }
-        ArrayList<Object> limbo = new ArrayList<>();
-        for(AbstractCard card : AbstractDungeon.player.limbo.group) {
-            limbo.add(convertCardToJson(card));
-        }
-        state.put("draw_pile", draw_pile);
-        state.put("discard_pile", discard_pile);
-        state.put("exhaust_pile", exhaust_pile);
-        state.put("hand", hand);
-        state.put("limbo", limbo);
-        if (AbstractDungeon.player.cardInUse != null) {
-            state.put("card_in_play", convertCardToJson(AbstractDungeon.player.cardInUse));
-        }
-        state.put("player", convertPlayerToJson(AbstractDungeon.player));
-        state.put("turn", GameActionManager.turn);
-        state.put("cards_discarded_this_turn", GameActionManager.totalDiscardedThisTurn);
-        state.put("times_damaged", AbstractDungeon.player.damagedThisCombat);
-        return state;
+     * @param writer The writer to write the combat state object to
+     */
+    private static void writeCombatState(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        if(StateProjection.includes("combat_state.monsters")) {
+            writer.name("monsters").beginArray();
+            for(AbstractMonster monster : AbstractDungeon.getCurrRoom().monsters.monsters) {
+                writeMonster(writer, monster);
+            }
+            writer.endArray();
+        }
+        if(StateProjection.includes("combat_state.draw_pile")) {
+            writer.name("draw_pile");
+            writeCardList(writer, AbstractDungeon.player.drawPile.group);
+        }
+        if(StateProjection.includes("combat_state.discard_pile")) {
+            writer.name("discard_pile");
+            writeCardList(writer, AbstractDungeon.player.discardPile.group);
+        }
+        if(StateProjection.includes("combat_state.exhaust_pile")) {
+            writer.name("exhaust_pile");
+            writeCardList(writer, AbstractDungeon.player.exhaustPile.group);
+        }
+        if(StateProjection.includes("combat_state.hand")) {
+            writer.name("hand");
+            writeCardList(writer, AbstractDungeon.player.hand.group);
+        }
+        if(StateProjection.includes("combat_state.limbo")) {
+            writer.name("limbo");
+            writeCardList(writer, AbstractDungeon.player.limbo.group);
+        }
+        if (AbstractDungeon.player.cardInUse != null && StateProjection.includes("combat_state.card_in_play")) {
+            writer.name("card_in_play");
+            writeCard(writer, AbstractDungeon.player.cardInUse);
+        }
+        if(StateProjection.includes("combat_state.player")) {
+            writer.name("player");
+            writePlayer(writer, AbstractDungeon.player);
+        }
+        if(StateProjection.includes("combat_state.turn")) {
+            writer.name("turn").value(GameActionManager.turn);
+        }
+        if(StateProjection.includes("combat_state.cards_discarded_this_turn")) {
+            writer.name("cards_discarded_this_turn").value(GameActionManager.totalDiscardedThisTurn);
+        }
+        if(StateProjection.includes("combat_state.times_damaged")) {
+            writer.name("times_damaged").value(AbstractDungeon.player.damagedThisCombat);
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Returns the JSON for the game map, reusing the last one while the act, the map and the current room are
+     * unchanged. The current room is part of the key because entering a "?" node replaces the room it holds.
+     * @return The JSON representation of the map written by writeMap()
+     */
+    private static String getMapJson() throws IOException {
+        MapRoomNode node = AbstractDungeon.getCurrMapNode();
+        AbstractRoom room = node == null ? null : node.room;
+        if(cachedMap == null || cachedMapAct != AbstractDungeon.actNum || cachedMapSource != AbstractDungeon.map
+                || cachedMapNode != node || cachedMapRoom != room) {
+            StringWriter out = new StringWriter();
+            JsonWriter writer = newJsonWriter(out);
+            writeMap(writer);
+            writer.flush();
+            cachedMap = out.toString();
+            cachedMapAct = AbstractDungeon.actNum;
+            cachedMapSource = AbstractDungeon.map;
+            cachedMapNode = node;
+            cachedMapRoom = room;
+        }
+        return cachedMap;
     }
 
     /**
-     * Creates a GSON-compatible representation of the game map
+     * Writes a JSON representation of the game map
      * The map object is a list of nodes, each of which with two extra fields:
      * "parents" (list): Not implemented
      * "children" (list): The nodes connected by an edge out of the node in question
-     * @return A list of node objects
+     * @param writer The writer to write the list of node objects to
      */
-    private static ArrayList<Object> convertMapToJson() {
+    private static void writeMap(JsonWriter writer) throws IOException {
         ArrayList<ArrayList<MapRoomNode>> map = AbstractDungeon.map;
-        ArrayList<Object> jsonMap = new ArrayList<>();
+        writer.beginArray();
         for(ArrayList<MapRoomNode> layer : map) {
             for(MapRoomNode node : layer) {
                 if(node.hasEdges()) {
-                    HashMap<String, Object> json_node = convertMapRoomNodeToJson(node);
-                    ArrayList<Object> json_children = new ArrayList<>();
-                    ArrayList<Object> json_parents = new ArrayList<>();
-                    for(MapEdge edge : node.getEdges()) {
-                        if (edge.srcX == node.x && edge.srcY == node.y) {
-                            json_children.add(convertCoordinatesToJson(edge.dstX, edge.dstY));
-                        } else {
-                            json_parents.add(convertCoordinatesToJson(edge.srcX, edge.srcY));
-                        }
-                    }
-
-                    json_node.put("parents", json_parents);
-                    json_node.put("children", json_children);
-                    jsonMap.add(json_node);
+                    StateJson.writeMapNode(writer, node.x, node.y, node.getRoomSymbol(true), getEdgeCoordinates(node));
                 }
             }
         }
-        return jsonMap;
+        writer.endArray();
     }
 
-    private static HashMap<String, Object> convertCoordinatesToJson(int x, int y) {
-        HashMap<String, Object> jsonNode = new HashMap<>();
-        jsonNode.put("x", x);
-        jsonNode.put("y", y);
-        return jsonNode;
+    // The map is only written when it changes, so the edges are copied out of the game for StateJson as needed.
+    private static int[] getEdgeCoordinates(MapRoomNode node) {
+        ArrayList<MapEdge> edges = node.getEdges();
+        int[] coordinates = new int[edges.size() * 4];
+        for(int i = 0; i < edges.size(); i++) {
+            MapEdge edge = edges.get(i);
+            coordinates[i * 4] = edge.srcX;
+            coordinates[i * 4 + 1] = edge.srcY;
+            coordinates[i * 4 + 2] = edge.dstX;
+            coordinates[i * 4 + 3] = edge.dstY;
+        }
+        return coordinates;
     }
 
     /**
-     * Creates a GSON-compatible representation of the given node
+     * Writes a JSON representation of the given node
      * The node object contains:
      * "x" (int): The node's x coordinate
      * "y" (int): The node's y coordinate
      * "symbol" (string, optional): The map symbol for the node (?, $, T, M, E, R)
      * "children" (list, optional): The nodes connected by an edge out of the provided node
-     * Note: children are added by convertMapToJson()
+     * Note: children are added by writeMap()
+     * @param writer The writer to write the node object to
      * @param node The node to convert
-     * @return A node object
      */
-    private static HashMap<String, Object> convertMapRoomNodeToJson(MapRoomNode node) {
-        HashMap<String, Object> jsonNode = convertCoordinatesToJson(node.x, node.y);
-        jsonNode.put("symbol", node.getRoomSymbol(true));
-        return jsonNode;
+    private static void writeMapRoomNode(JsonWriter writer, MapRoomNode node) throws IOException {
+        writer.beginObject();
+        writeMapRoomNodeFields(writer, node);
+        writer.endObject();
+    }
+
+    private static void writeMapRoomNodeFields(JsonWriter writer, MapRoomNode node) throws IOException {
+        StateJson.writeMapNodeFields(writer, node.x, node.y, node.getRoomSymbol(true));
+    }
+
+    private static void writeCardList(JsonWriter writer, List<AbstractCard> cards) throws IOException {
+        writer.beginArray();
+        for(AbstractCard card : cards) {
+            writeCard(writer, card);
+        }
+        writer.endArray();
+    }
+
+    private static void writeStringList(JsonWriter writer, List<String> strings) throws IOException {
+        writer.beginArray();
+        for(String string : strings) {
+            writer.value(string);
+        }
+        writer.endArray();
     }
 
     /**
-     * Creates a GSON-compatible representation of the given cards
+     * Writes a JSON representation of the given card
      * The card object contains:
      * "name" (string): The name of the card, in the currently selected language
      * "uuid" (string): The unique identifier of the card
@@ -635,32 +849,28 @@ public class GameStateConverter {
      * "has_target" (boolean): Whether the card requires a target to be played
      * "exhausts" (boolean): Whether the card exhausts when played
      * "ethereal" (boolean): Whether the card is ethereal
+     * @param writer The writer to write the card object to
      * @param card The card to convert
-     * @return A card object
      */
-    private static HashMap<String, Object> convertCardToJson(AbstractCard card) {
-        HashMap<String, Object> jsonCard = new HashMap<>();
-        jsonCard.put("name", card.name);
-        jsonCard.put("uuid", card.uuid.toString());
-        if(card.misc != 0) {
-            jsonCard.put("misc", card.misc);
-        }
+    private static void writeCard(JsonWriter writer, AbstractCard card) throws IOException {
+        writer.beginObject();
+        writeCardFields(writer, card);
+        writer.endObject();
+    }
+
+    private static void writeCardFields(JsonWriter writer, AbstractCard card) throws IOException {
+        Boolean isPlayable = null;
         if(AbstractDungeon.getMonsters() != null) {
-            jsonCard.put("is_playable", card.canUse(AbstractDungeon.player, null));
+            isPlayable = card.canUse(AbstractDungeon.player, null);
         }
-        jsonCard.put("cost", card.costForTurn);
-        jsonCard.put("upgrades", card.timesUpgraded);
-        jsonCard.put("id", card.cardID);
-        jsonCard.put("type", card.type.name());
-        jsonCard.put("rarity", card.rarity.name());
-        jsonCard.put("has_target", card.target== AbstractCard.CardTarget.SELF_AND_ENEMY || card.target == AbstractCard.CardTarget.ENEMY);
-        jsonCard.put("exhausts", card.exhaust);
-        jsonCard.put("ethereal", card.isEthereal);
-        return jsonCard;
+        StateJson.writeCardFields(writer, card.name, card.uuid.toString(), card.misc, isPlayable, card.costForTurn,
+                card.timesUpgraded, card.cardID, card.type.name(), card.rarity.name(),
+                card.target == AbstractCard.CardTarget.SELF_AND_ENEMY || card.target == AbstractCard.CardTarget.ENEMY,
+                card.exhaust, card.isEthereal);
     }
 
     /**
-     * Creates a GSON-compatible representation of the given monster
+     * Writes a JSON representation of the given monster
      * The monster object contains:
      * "name" (string): The monster's name, in the currently selected language
      * "id" (string): The monster's id
@@ -678,52 +888,53 @@ public class GameStateConverter {
      * "is_gone" (boolean): Whether the monster is dead or has run away
      * "powers" (list): The monster's current powers
      * Note: If the player has Runic Dome, intent will always return NONE
+     * @param writer The writer to write the monster object to
      * @param monster The monster to convert
-     * @return A monster object
-     */
-    private static HashMap<String, Object> convertMonsterToJson(AbstractMonster monster) {
-        HashMap<String, Object> jsonMonster = new HashMap<>();
-        jsonMonster.put("id", monster.id);
-        jsonMonster.put("name", monster.name);
-        jsonMonster.put("current_hp", monster.currentHealth);
-        jsonMonster.put("max_hp", monster.maxHealth);
+     */
+    private static void writeMonster(JsonWriter writer, AbstractMonster monster) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(monster.id);
+        writer.name("name").value(monster.name);
+        writer.name("current_hp").value(monster.currentHealth);
+        writer.name("max_hp").value(monster.maxHealth);
         if (AbstractDungeon.player.hasRelic(RunicDome.ID)) {
-            jsonMonster.put("intent", AbstractMonster.Intent.NONE);
+            writer.name("intent").value(AbstractMonster.Intent.NONE.name());
         } else {
-            jsonMonster.put("intent", monster.intent.name());
-            EnemyMoveInfo moveInfo = (EnemyMoveInfo)ReflectionHacks.getPrivate(monster, AbstractMonster.class, "move");
+            writer.name("intent").value(monster.intent.name());
+            EnemyMoveInfo moveInfo = (EnemyMoveInfo)StateJson.getFieldValue(MONSTER_MOVE_FIELD, monster);
             if (moveInfo != null) {
-                jsonMonster.put("move_id", moveInfo.nextMove);
-                jsonMonster.put("move_base_damage", moveInfo.baseDamage);
-                int intentDmg = (int)ReflectionHacks.getPrivate(monster, AbstractMonster.class, "intentDmg");
+                writer.name("move_id").value(moveInfo.nextMove);
+                writer.name("move_base_damage").value(moveInfo.baseDamage);
+                int intentDmg = (int)StateJson.getFieldValue(MONSTER_INTENT_DAMAGE_FIELD, monster);
                 if (moveInfo.baseDamage > 0) {
-                    jsonMonster.put("move_adjusted_damage", intentDmg);
+                    writer.name("move_adjusted_damage").value(intentDmg);
                 } else {
-                    jsonMonster.put("move_adjusted_damage", moveInfo.baseDamage);
+                    writer.name("move_adjusted_damage").value(moveInfo.baseDamage);
                 }
                 int move_hits = moveInfo.multiplier;
                 // If isMultiDamage is not set, the multiplier is probably 0, but there is really 1 attack.
                 if (!moveInfo.isMultiDamage) {
                     move_hits = 1;
                 }
-                jsonMonster.put("move_hits", move_hits);
+                writer.name("move_hits").value(move_hits);
             }
         }
         if(monster.moveHistory.size() >= 2) {
-            jsonMonster.put("last_move_id", monster.moveHistory.get(monster.moveHistory.size() - 2));
+            writer.name("last_move_id").value(monster.moveHistory.get(monster.moveHistory.size() - 2));
         }
         if(monster.moveHistory.size() >= 3) {
-            jsonMonster.put("second_last_move_id", monster.moveHistory.get(monster.moveHistory.size() - 3));
+            writer.name("second_last_move_id").value(monster.moveHistory.get(monster.moveHistory.size() - 3));
         }
-        jsonMonster.put("half_dead", monster.halfDead);
-        jsonMonster.put("is_gone", monster.isDeadOrEscaped());
-        jsonMonster.put("block", monster.currentBlock);
-        jsonMonster.put("powers", convertCreaturePowersToJson(monster));
-        return jsonMonster;
+        writer.name("half_dead").value(monster.halfDead);
+        writer.name("is_gone").value(monster.isDeadOrEscaped());
+        writer.name("block").value(monster.currentBlock);
+        writer.name("powers");
+        writeCreaturePowers(writer, monster);
+        writer.endObject();
     }
 
     /**
-     * Creates a GSON-compatible representation of the given player
+     * Writes a JSON representation of the given player
      * The player object contains:
      * "max_hp" (int): The player's maximum hp
      * "current_hp" (int): The player's current hp
@@ -732,48 +943,30 @@ public class GameStateConverter {
      * "energy" (int): The player's current energy
      * "orbs" (list): The player's current orb slots
      * Note: many other things, like draw pile and discard pile, are in the combat state
+     * @param writer The writer to write the player object to
      * @param player The player to convert
-     * @return A player object
-     */
-    private static HashMap<String, Object> convertPlayerToJson(AbstractPlayer player) {
-        HashMap<String, Object> jsonPlayer = new HashMap<>();
-        jsonPlayer.put("max_hp", player.maxHealth);
-        jsonPlayer.put("current_hp", player.currentHealth);
-        jsonPlayer.put("powers", convertCreaturePowersToJson(player));
-        jsonPlayer.put("energy", EnergyPanel.totalCount);
-        jsonPlayer.put("block", player.currentBlock);
-        ArrayList<Object> orbs = new ArrayList<>();
+     */
+    private static void writePlayer(JsonWriter writer, AbstractPlayer player) throws IOException {
+        writer.beginObject();
+        writer.name("max_hp").value(player.maxHealth);
+        writer.name("current_hp").value(player.currentHealth);
+        writer.name("powers");
+        writeCreaturePowers(writer, player);
+        writer.name("energy").value(EnergyPanel.totalCount);
+        writer.name("block").value(player.currentBlock);
+        writer.name("orbs").beginArray();
         for(AbstractOrb orb : player.orbs) {
-            orbs.add(convertOrbToJson(orb));
+            writeOrb(writer, orb);
         }
-        jsonPlayer.put("orbs", orbs);
-        return jsonPlayer;
+        writer.endArray();
+        writer.endObject();
     }
 
-    /**
-     * Checks whether the given object has the specified field. If so, returns the field's value. Else returns null.
-     * @param object The object used to look for the specified field
-     * @param fieldName The field that we want to access
-     * @return The value of the field, if present, or else null.
-     */
-    private static Object getFieldIfExists(Object object, String fieldName) {
-        Class objectClass = object.getClass();
-        for (Field field : objectClass.getDeclaredFields()) {
-            if (field.getName().equals(fieldName)) {
-                try {
-                    field.setAccessible(true);
-                    return field.get(object);
-                } catch(IllegalAccessException e) {
-                    e.printStackTrace();
-                    return null;
-                }
-            }
-        }
-        return null;
-    }
+    private static final Field MONSTER_MOVE_FIELD = StateJson.findDeclaredField(AbstractMonster.class, "move");
+    private static final Field MONSTER_INTENT_DAMAGE_FIELD = StateJson.findDeclaredField(AbstractMonster.class, "intentDmg");
 
     /**
-     * Creates a GSON-compatible representation of the given creature's powers
+     * Writes a JSON representation of the given creature's powers
      * The power object contains:
      * "id" (string): The id of the power
      * "name" (string): The name of the power, in the currently selected language
@@ -782,120 +975,85 @@ public class GameStateConverter {
      * "card" (object, optional): The card associated with the power (for powers like Nightmare)
      * "misc" (int, optional): Contains misc values that don't fit elsewhere (such as the base value for Flight)
      * "just_applied" (boolean, optional): Used with many powers to prevent them from expiring immediately
+     * @param writer The writer to write the list of power objects to
      * @param creature The creature whose powers are to be converted
-     * @return A list of power objects
      */
-    private static ArrayList<Object> convertCreaturePowersToJson(AbstractCreature creature) {
-        ArrayList<Object> powers = new ArrayList<>();
+    private static void writeCreaturePowers(JsonWriter writer, AbstractCreature creature) throws IOException {
+        writer.beginArray();
         for(AbstractPower power : creature.powers) {
-            HashMap<String, Object> json_power = new HashMap<>();
-            json_power.put("id", power.ID);
-            json_power.put("name", power.name);
-            json_power.put("amount", power.amount);
-            Object damage = getFieldIfExists(power, "damage");
-            if (damage != null) {
-                json_power.put("damage", (int)damage);
-            }
-            Object card = getFieldIfExists(power, "card");
-            if (card != null) {
-                json_power.put("card", convertCardToJson((AbstractCard)card));
-            }
-            String[] miscFieldNames = {
-                    "basePower", "maxAmt", "storedAmount", "hpLoss", "cardsDoubledThisTurn"
-            };
-            // basePower gives the base power for Malleable
-            // maxAmt gives the max amount of damage per turn for Invincible
-            // storedAmount gives the number of stacks per turn for Flight
-            // hpLoss gives the amount of HP lost per turn with Combust
-            // cardsDoubledThisTurn gives the number of cards already doubled with Echo Form
-            Object misc = null;
-            for (String fieldName : miscFieldNames) {
-                misc = getFieldIfExists(power, fieldName);
-                if (misc != null) {
-                    json_power.put("misc", (int)misc);
-                    break;
-                }
-            }
-
-            String[] justAppliedNames = {
-                    "justApplied", "skipFirst"
-            };
-            // justApplied is used with a variety of powers to prevent them from expiring immediately (cast from bool)
-            // skipFirst is the same as justApplied, for the Ritual power
-            Object justApplied = null;
-            for (String fieldName : justAppliedNames) {
-                justApplied = getFieldIfExists(power, fieldName);
-                if (justApplied != null) {
-                    json_power.put("just_applied", (boolean)justApplied);
-                    break;
-                }
-            }
-
-            powers.add(json_power);
+            StateJson.writePower(writer, power, power.ID, power.name, power.amount, GameStateConverter::writeCard);
         }
-        return powers;
+        writer.endArray();
     }
 
     /**
-     * Creates a GSON-compatible representation of the given relic
+     * Writes a JSON representation of the given relic
      * The relic object contains:
      * "id" (string): The id of the relic
      * "name" (string): The name of the relic, in the currently selected language
      * "counter" (int): The counter on the relic
+     * @param writer The writer to write the relic object to
      * @param relic The relic to convert
-     * @return A relic object
      */
-    private static HashMap<String, Object> convertRelicToJson(AbstractRelic relic) {
-        HashMap<String, Object> jsonRelic = new HashMap<>();
-        jsonRelic.put("id", relic.relicId);
-        jsonRelic.put("name", relic.name);
-        jsonRelic.put("counter", relic.counter);
-        return jsonRelic;
+    private static void writeRelic(JsonWriter writer, AbstractRelic relic) throws IOException {
+        writer.beginObject();
+        writeRelicFields(writer, relic);
+        writer.endObject();
+    }
+
+    private static void writeRelicFields(JsonWriter writer, AbstractRelic relic) throws IOException {
+        writer.name("id").value(relic.relicId);
+        writer.name("name").value(relic.name);
+        writer.name("counter").value(relic.counter);
     }
 
     /**
-     * Creates a GSON-compatible representation of the given potion
+     * Writes a JSON representation of the given potion
      * The potion object contains:
      * "id" (string): The id of the potion
      * "name" (string): The name of the potion, in the currently selected language
      * "can_use" (boolean): Whether the potion can currently be used
      * "can_discard" (boolean): Whether the potion can currently be discarded
      * "requires_target" (boolean): Whether the potion must be used with a target
+     * @param writer The writer to write the potion object to
      * @param potion The potion to convert
-     * @return A potion object
      */
-    private static HashMap<String, Object> convertPotionToJson(AbstractPotion potion) {
-        HashMap<String, Object> jsonPotion = new HashMap<>();
-        jsonPotion.put("id", potion.ID);
-        jsonPotion.put("name", potion.name);
+    private static void writePotion(JsonWriter writer, AbstractPotion potion) throws IOException {
+        writer.beginObject();
+        writePotionFields(writer, potion);
+        writer.endObject();
+    }
+
+    private static void writePotionFields(JsonWriter writer, AbstractPotion potion) throws IOException {
+        writer.name("id").value(potion.ID);
+        writer.name("name").value(potion.name);
         boolean canUse = potion.canUse();
         boolean canDiscard = potion.canDiscard();
         if (potion instanceof PotionSlot) {
             canDiscard = canUse = false;
         }
-        jsonPotion.put("can_use", canUse);
-        jsonPotion.put("can_discard", canDiscard);
-        jsonPotion.put("requires_target", potion.isThrown);
-        return jsonPotion;
+        writer.name("can_use").value(canUse);
+        writer.name("can_discard").value(canDiscard);
+        writer.name("requires_target").value(potion.isThrown);
     }
 
     /**
-     * Creates a GSON-compatible representation of the given orb
+     * Writes a JSON representation of the given orb
      * The orb object contains:
      * "id" (string): The id of the orb
      * "name" (string): The name of the orb, in the currently selected language
      * "evoke_amount" (int): The evoke amount of the orb
      * "passive_amount" (int): The passive amount of the orb
+     * @param writer The writer to write the orb object to
      * @param orb The orb to convert
-     * @return An orb object
-     */
-    private static HashMap<String, Object> convertOrbToJson(AbstractOrb orb) {
-        HashMap<String, Object> jsonOrb =  new HashMap<>();
-        jsonOrb.put("id", orb.ID);
-        jsonOrb.put("name", orb.name);
-        jsonOrb.put("evoke_amount", orb.evokeAmount);
-        jsonOrb.put("passive_amount", orb.passiveAmount);
-        return jsonOrb;
+     */
+    private static void writeOrb(JsonWriter writer, AbstractOrb orb) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(orb.ID);
+        writer.name("name").value(orb.name);
+        writer.name("evoke_amount").value(orb.evokeAmount);
+        writer.name("passive_amount").value(orb.passiveAmount);
+        writer.endObject();
     }
 
 }
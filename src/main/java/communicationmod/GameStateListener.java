@@ -1,6 +1,5 @@
 package communicationmod;
 
-import com.megacrit.cardcrawl.actions.GameActionManager;
 import com.megacrit.cardcrawl.core.CardCrawlGame;
 import com.megacrit.cardcrawl.dungeons.AbstractDungeon;
 import com.megacrit.cardcrawl.neow.NeowRoom;
@@ -11,6 +10,8 @@ import com.megacrit.cardcrawl.rooms.VictoryRoom;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.concurrent.atomic.AtomicLongArray;
+
 public class GameStateListener {
     private static final Logger logger = LogManager.getLogger(GameStateListener.class.getName());
     private static AbstractDungeon.CurrentScreen previousScreen = null;
@@ -25,6 +26,20 @@ public class GameStateListener {
     private static boolean hasPresentedOutOfGameState = false;
     private static boolean waitOneUpdate = false;
     private static int timeout = 0;
+    private static boolean combatEnded = false;
+    // Whether an action has been queued since the action manager last ran out of actions
+    private static boolean actionsPending = false;
+
+    // Stability detection only runs its checks while SETTLING. The patches and commands move it between the states:
+    // queueing an action in combat, or ending the turn, makes it RESOLVING until the action queues drain on your turn,
+    // and a detected stable state makes it IDLE until the next signal. Only a screen coming up or changing is looked
+    // for without a signal.
+    private enum Stability {
+        SETTLING,
+        RESOLVING,
+        IDLE
+    }
+    private static Stability stability = Stability.SETTLING;
 
     // Wait condition tracking
     public enum WaitCondition {
@@ -41,6 +56,36 @@ public class GameStateListener {
     private static long visualStableWaitStartTime = 0;
     private static final long VISUAL_STABLE_TIMEOUT_MS = 30000; // 30 seconds
 
+    /**
+     * The checks that can keep the screen from being visually stable, in the order they are made.
+     */
+    public enum VisualBlocker {
+        SPLASH("splash"),
+        LOADING_SAVE("loading_save"),
+        DUNGEON_FADING("dungeon_fading"),
+        FADE_TIMER("fade_timer"),
+        SCREEN_SWAP("screen_swap"),
+        ROOM_WAIT_TIMER("room_wait_timer"),
+        EVENT_WAIT_TIMER("event_wait_timer"),
+        TURN_BANNER("turn_banner"),
+        SCREEN_TIMER("screen_timer");
+
+        private final String name;
+
+        VisualBlocker(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+    // Read by the metrics report, which may be made from another thread
+    private static final AtomicLongArray visualBlockedFrames = new AtomicLongArray(VisualBlocker.values().length);
+    // What the last check was blocked on, or null if it passed
+    private static VisualBlocker lastVisualBlocker = null;
+    private static boolean hasCheckedVisualStability = false;
+
     // Timeout tracking for stable-state detection (ready_for_command)
     // If waitingForCommand stays false for too long while the game appears stable,
     // we report an error instead of making the client wait forever
@@ -59,13 +104,45 @@ public class GameStateListener {
     // Force ready_for_command=true on next state send (for commands like arena_back)
     private static boolean forceReadyOnNextSend = false;
 
+    // Incremented whenever the game may have changed in a way that matters to the external process
+    private static long stateVersion = 0;
+
     /**
      * Used to indicate that something (in game logic, not external command) has been done that will change the game state,
      * and hasStateChanged() should indicate a state change when the state next becomes stable.
      */
     public static void registerStateChange() {
+        stability = Stability.SETTLING;
         externalChange = true;
         waitingForCommand = false;
+        stateVersion++;
+    }
+
+    /**
+     * Used by patches in the game to signal that an action has been queued. In combat, nothing is ready until the
+     * action has resolved, so the checks are put off until the action queues drain.
+     */
+    public static void signalActionQueued() {
+        registerStateChange();
+        actionsPending = true;
+        if (!CommandExecutor.isInDungeon()) {
+            return;
+        }
+        AbstractRoom room = AbstractDungeon.getCurrRoom();
+        if (room != null && room.phase == RoomPhase.COMBAT && !room.isBattleOver) {
+            stability = Stability.RESOLVING;
+        }
+    }
+
+    /**
+     * Used by a patch in the game to signal that the action manager has run out of actions and is waiting on the
+     * player. This is the point at which the actions queued on your turn have all resolved.
+     */
+    public static void signalActionsDrained() {
+        actionsPending = false;
+        if (stability == Stability.RESOLVING && myTurn) {
+            stability = Stability.SETTLING;
+        }
     }
 
     /**
@@ -73,6 +150,7 @@ public class GameStateListener {
      * @param newTimeout The number of frames to wait
      */
     public static void setTimeout(int newTimeout) {
+        stability = Stability.SETTLING;
         timeout = newTimeout;
     }
 
@@ -81,9 +159,12 @@ public class GameStateListener {
      * Starts the command wait timeout timer.
      */
     public static void registerCommandExecution() {
+        stability = Stability.SETTLING;
         waitingForCommand = false;
         commandWaitStartTime = System.currentTimeMillis();
         stableStateCounter = 0;
+        stateVersion++;
+        Metrics.recordCommandExecution(FastMode.isEnabled());
     }
 
     /**
@@ -97,6 +178,9 @@ public class GameStateListener {
      * Removes the block instantiated by blockStateChanged()
      */
     public static void resumeStateUpdate() {
+        if (blocked) {
+            stability = Stability.SETTLING;
+        }
         blocked = false;
     }
 
@@ -105,16 +189,40 @@ public class GameStateListener {
      * when it is not our turn in combat, as we cannot take action until then.
      */
     public static void signalTurnStart() {
+        stability = Stability.SETTLING;
         myTurn = true;
+        combatEnded = false;
     }
 
     /**
-     * Used by patches in the game to signal the end of your turn (or the end of combat).
+     * Used by a patch in the game to signal the end of your turn. Nothing is ready until your next turn starts, unless
+     * a screen comes up.
      */
     public static void signalTurnEnd() {
+        stability = Stability.RESOLVING;
+        myTurn = false;
+    }
+
+    /**
+     * Used to signal the end of combat. It is signalled on every update until the room changes, so only the first
+     * signal wakes stability detection.
+     */
+    public static void signalCombatEnd() {
+        if (!combatEnded) {
+            stability = Stability.SETTLING;
+            combatEnded = true;
+        }
         myTurn = false;
     }
 
+    /**
+     * Used by a patch in the game to signal that a new room has been entered.
+     */
+    public static void signalRoomTransition() {
+        stability = Stability.SETTLING;
+        combatEnded = false;
+    }
+
     /**
      * Signals that the game should report ready_for_command=true on the next state send.
      * Used by command extensions that need to force a state response
@@ -126,6 +234,7 @@ public class GameStateListener {
      */
     public static void signalReadyForCommand() {
         forceReadyOnNextSend = true;
+        stateVersion++;
     }
 
     /**
@@ -142,11 +251,15 @@ public class GameStateListener {
         blocked = false;
         waitingForCommand = false;
         waitOneUpdate = false;
+        combatEnded = false;
+        actionsPending = false;
         waitCondition = WaitCondition.NONE;
         waitConditionTargetValue = false;
         forceReadyOnNextSend = false;
         commandWaitStartTime = 0;
         stableStateCounter = 0;
+        stability = Stability.SETTLING;
+        stateVersion++;
     }
 
     /**
@@ -230,6 +343,7 @@ public class GameStateListener {
             waitCondition = WaitCondition.NONE;
             waitConditionTargetValue = false;
             waitingForCommand = true;
+            stateVersion++;
             return true;
         }
         return false;
@@ -256,22 +370,43 @@ public class GameStateListener {
      * Note: We don't check if effect lists are empty because there are always
      * ambient effects (particles, lighting) playing during normal gameplay.
      *
+     * Each call that is blocked is counted against the check that blocked it. The first check of a wait is logged,
+     * and after that only changes in what is blocking it.
+     *
      * @return true if visual effects are stable
      */
     public static boolean areVisualEffectsStable() {
+        VisualBlocker blocker = findVisualBlocker();
+        if (blocker != null) {
+            visualBlockedFrames.incrementAndGet(blocker.ordinal());
+        }
+        // Only changes are logged, as the check runs every frame for as long as the wait lasts.
+        if (blocker != lastVisualBlocker || !hasCheckedVisualStability) {
+            if (blocker != null) {
+                logger.info("Visual stability blocked: " + describeVisualBlocker(blocker));
+            } else {
+                logger.info("Visual stability: all checks passed, stable!");
+            }
+            lastVisualBlocker = blocker;
+            hasCheckedVisualStability = true;
+        }
+        return blocker == null;
+    }
+
+    /**
+     * @return The first check that the screen fails to be stable on, or null if it is stable
+     */
+    private static VisualBlocker findVisualBlocker() {
         // Check if the game is in a true transitional mode (SPLASH only)
         // Note: CHAR_SELECT is the normal main menu state, so we don't block on it
-        CardCrawlGame.GameMode mode = CardCrawlGame.mode;
-        if (mode == CardCrawlGame.GameMode.SPLASH) {
-            logger.info("Visual stability blocked: CardCrawlGame.mode=" + mode);
-            return false;
+        if (CardCrawlGame.mode == CardCrawlGame.GameMode.SPLASH) {
+            return VisualBlocker.SPLASH;
         }
 
         // Check if we're loading a save (transition in progress)
         // This catches the CHAR_SELECT -> GAMEPLAY transition
         if (CardCrawlGame.loadingSave) {
-            logger.info("Visual stability blocked: CardCrawlGame.loadingSave=true");
-            return false;
+            return VisualBlocker.LOADING_SAVE;
         }
 
         // Note: We intentionally don't check mainMenuScreen.isFadingOut because it can
@@ -282,28 +417,17 @@ public class GameStateListener {
         if (CommandExecutor.isInDungeon()) {
             // Check for dungeon fading
             if (AbstractDungeon.isFadingIn || AbstractDungeon.isFadingOut) {
-                logger.info("Visual stability blocked: isFadingIn=" + AbstractDungeon.isFadingIn + " isFadingOut=" + AbstractDungeon.isFadingOut);
-                return false;
+                return VisualBlocker.DUNGEON_FADING;
             }
 
-            // Check fade timer via reflection (it's protected)
-            try {
-                java.lang.reflect.Field fadeTimerField = AbstractDungeon.class.getDeclaredField("fadeTimer");
-                fadeTimerField.setAccessible(true);
-                float fadeTimer = fadeTimerField.getFloat(null);
-                if (fadeTimer > 0) {
-                    logger.info("Visual stability blocked: fadeTimer=" + fadeTimer);
-                    return false;
-                }
-            } catch (Exception e) {
-                // If reflection fails, fall through to other checks
-                logger.info("Visual stability: fadeTimer reflection failed: " + e.getMessage());
+            // Check fade timer, which reads as 0 if it could not be found
+            if (FastMode.getFadeTimer() > 0) {
+                return VisualBlocker.FADE_TIMER;
             }
 
             // Check for screen swap in progress
             if (AbstractDungeon.screenSwap) {
-                logger.info("Visual stability blocked: screenSwap=true");
-                return false;
+                return VisualBlocker.SCREEN_SWAP;
             }
 
             // Note: We intentionally don't check waitingOnFadeOut because it can stay
@@ -314,8 +438,7 @@ public class GameStateListener {
             // where the timer hovers at a small value in certain game states (e.g., after
             // starting a new run while sitting in Neow's room).
             if (AbstractRoom.waitTimer > 0.1f) {
-                logger.info("Visual stability blocked: AbstractRoom.waitTimer=" + AbstractRoom.waitTimer);
-                return false;
+                return VisualBlocker.ROOM_WAIT_TIMER;
             }
 
             // Check if current room exists and has an event with wait timer
@@ -325,27 +448,54 @@ public class GameStateListener {
                 if ((currentRoom instanceof EventRoom || currentRoom instanceof NeowRoom)
                         && currentRoom.event != null
                         && currentRoom.event.waitTimer > 0.1f) {
-                    logger.info("Visual stability blocked: event.waitTimer=" + currentRoom.event.waitTimer);
-                    return false;
+                    return VisualBlocker.EVENT_WAIT_TIMER;
                 }
             }
 
             // Check if the turn phase effect is active (shows "Player Turn X" banner)
             // This is the main cause of the overlay issue in screenshots
             if (AbstractDungeon.turnPhaseEffectActive) {
-                logger.info("Visual stability blocked: turnPhaseEffectActive=true");
-                return false;
+                return VisualBlocker.TURN_BANNER;
             }
         }
 
         // Check CardCrawlGame screen timer (applies both in and out of dungeon)
         if (CardCrawlGame.screenTimer > 0) {
-            logger.info("Visual stability blocked: CardCrawlGame.screenTimer=" + CardCrawlGame.screenTimer);
-            return false;
+            return VisualBlocker.SCREEN_TIMER;
+        }
+        return null;
+    }
+
+    private static String describeVisualBlocker(VisualBlocker blocker) {
+        switch (blocker) {
+            case SPLASH:
+                return "CardCrawlGame.mode=" + CardCrawlGame.mode;
+            case LOADING_SAVE:
+                return "CardCrawlGame.loadingSave=true";
+            case DUNGEON_FADING:
+                return "isFadingIn=" + AbstractDungeon.isFadingIn + " isFadingOut=" + AbstractDungeon.isFadingOut;
+            case FADE_TIMER:
+                return "fadeTimer=" + FastMode.getFadeTimer();
+            case SCREEN_SWAP:
+                return "screenSwap=true";
+            case ROOM_WAIT_TIMER:
+                return "AbstractRoom.waitTimer=" + AbstractRoom.waitTimer;
+            case EVENT_WAIT_TIMER:
+                return "event.waitTimer=" + AbstractDungeon.getCurrRoom().event.waitTimer;
+            case TURN_BANNER:
+                return "turnPhaseEffectActive=true";
+            case SCREEN_TIMER:
+                return "CardCrawlGame.screenTimer=" + CardCrawlGame.screenTimer;
+            default:
+                return blocker.getName();
         }
+    }
 
-        logger.info("Visual stability: all checks passed, stable!");
-        return true;
+    /**
+     * @return The number of frames on which visual stability has been checked and blocked by the given check
+     */
+    public static long getVisualBlockedFrames(VisualBlocker blocker) {
+        return visualBlockedFrames.get(blocker.ordinal());
     }
 
     /**
@@ -353,6 +503,8 @@ public class GameStateListener {
      */
     public static void startVisualStableWait() {
         visualStableWaitStartTime = System.currentTimeMillis();
+        // Each wait logs what it starts out blocked on
+        hasCheckedVisualStability = false;
     }
 
     /**
@@ -411,6 +563,7 @@ public class GameStateListener {
                         (elapsed / 1000) + " seconds. The game may be stuck or in an unexpected state.");
                 // Set ready to true so client can receive the error
                 waitingForCommand = true;
+                stateVersion++;
                 return true;
             }
         }
@@ -460,6 +613,13 @@ public class GameStateListener {
         return message;
     }
 
+    /**
+     * @return true if there is a pending message
+     */
+    public static boolean hasMessage() {
+        return lastMessage != null;
+    }
+
     /**
      * Detects whether the game state is stable and we are ready to receive a command from the user.
      *
@@ -470,9 +630,23 @@ public class GameStateListener {
             return false;
         }
         hasPresentedOutOfGameState = false;
+        if (stability == Stability.IDLE) {
+            if (!hasScreenMoved()) {
+                return false;
+            }
+            stability = Stability.SETTLING;
+        }
+        // While actions resolve or the monsters take their turn, only a screen brought up by an action needs attention
+        if (stability == Stability.RESOLVING) {
+            if (!AbstractDungeon.isScreenUp && AbstractDungeon.screen == previousScreen && timeout == 0) {
+                return false;
+            }
+            stability = Stability.SETTLING;
+        }
         AbstractDungeon.CurrentScreen newScreen = AbstractDungeon.screen;
         boolean newScreenUp = AbstractDungeon.isScreenUp;
-        AbstractRoom.RoomPhase newPhase = AbstractDungeon.getCurrRoom().phase;
+        AbstractRoom currentRoom = AbstractDungeon.getCurrRoom();
+        AbstractRoom.RoomPhase newPhase = currentRoom.phase;
         boolean inCombat = (newPhase == AbstractRoom.RoomPhase.COMBAT);
         // Lots of stuff can happen while the dungeon is fading out, but nothing that requires input from the user.
         if (AbstractDungeon.isFadingOut || AbstractDungeon.isFadingIn) {
@@ -493,11 +667,10 @@ public class GameStateListener {
             }
         }
         // In event rooms, we need to wait for the event wait timer to reach 0 before we can accurately assess its state.
-        AbstractRoom currentRoom = AbstractDungeon.getCurrRoom();
         if ((currentRoom instanceof EventRoom
                 || currentRoom instanceof NeowRoom
                 || (currentRoom instanceof VictoryRoom && ((VictoryRoom) currentRoom).eType == VictoryRoom.EventType.HEART))
-                && AbstractDungeon.getCurrRoom().event.waitTimer != 0.0F) {
+                && currentRoom.event.waitTimer != 0.0F) {
             return false;
         }
         // The state has always changed in some way when one of these variables is different.
@@ -509,9 +682,7 @@ public class GameStateListener {
                     return true;
                 }
                 // In combat, if no screen is up, we should wait for all actions to complete before indicating a state change.
-                else if (AbstractDungeon.actionManager.phase.equals(GameActionManager.Phase.WAITING_ON_USER)
-                        && AbstractDungeon.actionManager.cardQueue.isEmpty()
-                        && AbstractDungeon.actionManager.actions.isEmpty()) {
+                else if (!actionsPending) {
                     return true;
                 }
 
@@ -536,12 +707,9 @@ public class GameStateListener {
         }
         // If some other code registered a state change through registerStateChange(), or if we notice a state
         // change through the gold amount changing, we still need to wait until all actions are finished
-        // resolving to claim a stable state and ask for a new command.
-        if ((externalChange || previousGold != AbstractDungeon.player.gold)
-                && AbstractDungeon.actionManager.phase.equals(GameActionManager.Phase.WAITING_ON_USER)
-                && AbstractDungeon.actionManager.preTurnActions.isEmpty()
-                && AbstractDungeon.actionManager.actions.isEmpty()
-                && AbstractDungeon.actionManager.cardQueue.isEmpty()) {
+        // resolving to claim a stable state and ask for a new command. The action manager patches signal when they
+        // have finished.
+        if ((externalChange || previousGold != AbstractDungeon.player.gold) && !actionsPending) {
             return true;
         }
         // In a grid select screen, if a confirm screen comes up or goes away, it doesn't change any other state.
@@ -565,6 +733,15 @@ public class GameStateListener {
         return false;
     }
 
+    /**
+     * Changes to the room phase, the gold and the grid select confirm screen are signalled by patches, but screens are
+     * opened and closed from too many places to patch, so they are the only values looked at while detection is idle.
+     * @return true if the screen is no longer as it was when the last stable state was detected
+     */
+    private static boolean hasScreenMoved() {
+        return AbstractDungeon.screen != previousScreen || AbstractDungeon.isScreenUp != previousScreenUp;
+    }
+
     /**
      * Detects whether the state of the game menu has changed. Right now, this only occurs when you first enter the
      * menu, either after starting Slay the Spire for the first time, or after ending a game and returning to the menu.
@@ -580,6 +757,7 @@ public class GameStateListener {
         if (stateChange) {
             externalChange = false;
             waitingForCommand = true;
+            stateVersion++;
         }
         return stateChange;
     }
@@ -598,12 +776,17 @@ public class GameStateListener {
             if (stateChange) {
                 externalChange = false;
                 waitingForCommand = true;
+                stateVersion++;
                 previousPhase = AbstractDungeon.getCurrRoom().phase;
                 previousScreen = AbstractDungeon.screen;
                 previousScreenUp = AbstractDungeon.isScreenUp;
                 previousGold = AbstractDungeon.player.gold;
                 previousGridSelectConfirmUp = AbstractDungeon.gridSelectScreen.confirmScreenUp;
                 timeout = 0;
+                // A screen transition out of combat still reports again on the next update
+                if (!waitOneUpdate) {
+                    stability = Stability.IDLE;
+                }
             }
         } else {
             myTurn = false;
@@ -611,6 +794,23 @@ public class GameStateListener {
         return stateChange;
     }
 
+    /**
+     * Values cached against the version are valid until it changes. It changes when a command is executed, when the
+     * game changes by itself, and when a new stable state is detected.
+     * @return The current version of the game state
+     */
+    public static long getStateVersion() {
+        return stateVersion;
+    }
+
+    /**
+     * Unlike isWaitingForCommand(), this does not consume a forced ready state, so it can be polled.
+     * @return true if the next state sent will be ready for a command
+     */
+    public static boolean isReadyForCommand() {
+        return forceReadyOnNextSend || waitingForCommand;
+    }
+
     public static boolean isWaitingForCommand() {
         // Check if a command requested forced ready state (e.g., arena_back)
         if (forceReadyOnNextSend) {
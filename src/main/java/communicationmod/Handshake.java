@@ -0,0 +1,72 @@
+package communicationmod;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The options the external process asks for in its ready message. The first word of the message is ignored, so any
+ * message still works as a plain ready signal. The words after it are options, such as "ready binary".
+ */
+public class Handshake {
+
+    private static final Logger logger = LogManager.getLogger(Handshake.class.getName());
+
+    public static final String BINARY_OPTION = "binary";
+    public static final String LENGTH_PREFIXED_OPTION = "length_prefixed";
+
+    private boolean binary = false;
+    private boolean lengthPrefixed = false;
+
+    private Handshake() {
+    }
+
+    /**
+     * Options that are not recognised are logged and ignored, so that newer clients can still connect.
+     * @param message The ready message sent by the external process
+     * @return The options in the message
+     */
+    public static Handshake parse(String message) {
+        Handshake handshake = new Handshake();
+        String[] tokens = message.trim().split("\\s+");
+        for (int i = 1; i < tokens.length; i++) {
+            String option = tokens[i].toLowerCase();
+            if (option.equals(BINARY_OPTION)) {
+                handshake.binary = true;
+            } else if (option.equals(LENGTH_PREFIXED_OPTION)) {
+                handshake.lengthPrefixed = true;
+            } else {
+                logger.warn("Ignoring unknown option in ready message: " + tokens[i]);
+            }
+        }
+        return handshake;
+    }
+
+    /**
+     * Applies the options that concern the messages sent to the external process.
+     */
+    public void configure(DataWriter writer) {
+        if (binary) {
+            writer.useBinaryEncoding();
+        }
+        if (lengthPrefixed) {
+            writer.useLengthPrefixedFraming();
+        }
+    }
+
+    /**
+     * Applies the options that concern the messages received from the external process.
+     */
+    public void configure(DataReader reader) {
+        if (lengthPrefixed) {
+            reader.useLengthPrefixedFraming();
+        }
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public boolean isLengthPrefixed() {
+        return lengthPrefixed;
+    }
+}
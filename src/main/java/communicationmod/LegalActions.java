@@ -0,0 +1,124 @@
+package communicationmod;
+
+import com.megacrit.cardcrawl.cards.AbstractCard;
+import com.megacrit.cardcrawl.characters.AbstractPlayer;
+import com.megacrit.cardcrawl.dungeons.AbstractDungeon;
+import com.megacrit.cardcrawl.monsters.AbstractMonster;
+import com.megacrit.cardcrawl.potions.AbstractPotion;
+import com.megacrit.cardcrawl.potions.PotionSlot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Enumerates every game action the external process can take, as the command that takes it. Commands that only
+ * observe or wait, such as state and wait_for, are left out. The list is computed at most once per state version,
+ * and the commands in it are accepted without working out which commands are available.
+ */
+public class LegalActions {
+
+    private static List<String> actions = Collections.emptyList();
+    private static HashSet<String> actionSet = new HashSet<>();
+    private static long version = -1;
+
+    /**
+     * Actions are listed in the form the commands are documented in: cards from 1 and monsters and potion slots
+     * from 0. Targeted cards and potions are listed once per monster they can target.
+     * @return The legal actions in the current state
+     */
+    public static List<String> get() {
+        if (version != GameStateListener.getStateVersion()) {
+            ArrayList<String> newActions = enumerate();
+            actions = Collections.unmodifiableList(newActions);
+            actionSet = new HashSet<>(newActions);
+            version = GameStateListener.getStateVersion();
+        }
+        return actions;
+    }
+
+    /**
+     * Checks a command against the last list of legal actions, without computing a new one.
+     * @param command The command, in lower case, with its arguments separated by single spaces
+     * @return true if the command is a legal action in the current state
+     */
+    public static boolean contains(String command) {
+        return version == GameStateListener.getStateVersion() && actionSet.contains(command);
+    }
+
+    private static ArrayList<String> enumerate() {
+        ArrayList<String> legalActions = new ArrayList<>();
+        if (CommandExecutor.isPlayCommandAvailable()) {
+            addCardActions(legalActions);
+        }
+        if (CommandExecutor.isEndCommandAvailable()) {
+            legalActions.add("end");
+        }
+        if (CommandExecutor.isPotionCommandAvailable()) {
+            addPotionActions(legalActions);
+        }
+        if (CommandExecutor.isChooseCommandAvailable()) {
+            int choices = CommandExecutor.getCurrentChoiceList().size();
+            for (int i = 0; i < choices; i++) {
+                legalActions.add("choose " + i);
+            }
+        }
+        if (CommandExecutor.isConfirmCommandAvailable()) {
+            legalActions.add(ChoiceScreenUtils.getConfirmButtonText(CommandExecutor.getCurrentChoiceType()));
+        }
+        if (CommandExecutor.isCancelCommandAvailable()) {
+            legalActions.add(ChoiceScreenUtils.getCancelButtonText(CommandExecutor.getCurrentChoiceType()));
+        }
+        if (CommandExecutor.isStartCommandAvailable()) {
+            for (AbstractPlayer.PlayerClass playerClass : AbstractPlayer.PlayerClass.values()) {
+                legalActions.add("start " + playerClass.name().toLowerCase());
+            }
+        }
+        return legalActions;
+    }
+
+    private static void addCardActions(ArrayList<String> legalActions) {
+        ArrayList<AbstractMonster> monsters = AbstractDungeon.getCurrRoom().monsters.monsters;
+        ArrayList<AbstractCard> hand = AbstractDungeon.player.hand.group;
+        for (int i = 0; i < hand.size(); i++) {
+            AbstractCard card = hand.get(i);
+            if (card.target == AbstractCard.CardTarget.ENEMY || card.target == AbstractCard.CardTarget.SELF_AND_ENEMY) {
+                for (int j = 0; j < monsters.size(); j++) {
+                    AbstractMonster monster = monsters.get(j);
+                    if (!monster.isDeadOrEscaped() && card.canUse(AbstractDungeon.player, monster)) {
+                        legalActions.add("play " + (i + 1) + " " + j);
+                    }
+                }
+            } else if (card.canUse(AbstractDungeon.player, null)) {
+                legalActions.add("play " + (i + 1));
+            }
+        }
+    }
+
+    private static void addPotionActions(ArrayList<String> legalActions) {
+        ArrayList<AbstractMonster> monsters = AbstractDungeon.getCurrRoom().monsters == null
+                ? new ArrayList<>() : AbstractDungeon.getCurrRoom().monsters.monsters;
+        ArrayList<AbstractPotion> potions = AbstractDungeon.player.potions;
+        for (int i = 0; i < potions.size(); i++) {
+            AbstractPotion potion = potions.get(i);
+            if (potion instanceof PotionSlot) {
+                continue;
+            }
+            if (potion.canUse()) {
+                if (potion.targetRequired) {
+                    for (int j = 0; j < monsters.size(); j++) {
+                        if (!monsters.get(j).isDeadOrEscaped()) {
+                            legalActions.add("potion use " + i + " " + j);
+                        }
+                    }
+                } else {
+                    legalActions.add("potion use " + i);
+                }
+            }
+            if (potion.canDiscard()) {
+                legalActions.add("potion discard " + i);
+            }
+        }
+    }
+}
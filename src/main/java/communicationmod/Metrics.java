@@ -0,0 +1,260 @@
+package communicationmod;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Records what CommunicationMod costs the game, so that it can be reported by the metrics command or dumped to a file.
+ * Timings are kept in histograms with power-of-two buckets, so recording a value is a few atomic additions and never
+ * allocates. Everything may be read from another thread while it is being recorded.
+ * Values owned by other classes, such as queue depths, are registered as gauges and read when a report is made. This
+ * keeps the class free of game types, so the transport classes that record here can be benchmarked on their own.
+ */
+public class Metrics {
+
+    /**
+     * The code paths whose duration is recorded on every call.
+     */
+    public enum Timer {
+        PRE_UPDATE("pre_update"),
+        POST_UPDATE("post_update"),
+        POST_DUNGEON_UPDATE("post_dungeon_update"),
+        GET_COMMUNICATION_STATE("get_communication_state"),
+        CAPTURE_STATE("capture_state"),
+        ENCODE_STATE("encode_state"),
+        EXECUTE_COMMAND("execute_command"),
+        SAVE_SNAPSHOT("save_snapshot"),
+        RESTORE_SNAPSHOT("restore_snapshot");
+
+        private final String jsonName;
+
+        Timer(String jsonName) {
+            this.jsonName = jsonName;
+        }
+    }
+
+    private static final long startTime = System.nanoTime();
+    private static final Histogram[] timers = new Histogram[Timer.values().length];
+    private static final Histogram commandToReadyFrames = new Histogram();
+    private static final Histogram commandToReadyFramesFast = new Histogram();
+    private static final AtomicLong frames = new AtomicLong();
+    private static final AtomicLong messagesSent = new AtomicLong();
+    private static final AtomicLong bytesSent = new AtomicLong();
+    private static final AtomicLong messagesReceived = new AtomicLong();
+    private static final AtomicLong bytesReceived = new AtomicLong();
+    private static final AtomicLong maxWriteQueueDepth = new AtomicLong();
+    private static final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+    // The frame on which the command being waited on was executed, or -1 if there is none
+    private static long commandFrame = -1;
+    private static boolean commandFastMode = false;
+
+    static {
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Records the time since the given start time against the given code path.
+     * @param timer The code path that was timed
+     * @param startNanos The value of System.nanoTime() when the code path was entered
+     */
+    public static void recordTime(Timer timer, long startNanos) {
+        timers[timer.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Called once per frame, before anything else is recorded for it.
+     */
+    public static void startFrame() {
+        frames.incrementAndGet();
+    }
+
+    /**
+     * Called when a command that changes the state has been executed.
+     * @param fastMode Whether animations are being fast-forwarded, which decides where the wait for it is recorded
+     */
+    public static void recordCommandExecution(boolean fastMode) {
+        commandFrame = frames.get();
+        commandFastMode = fastMode;
+    }
+
+    /**
+     * Called when a state with ready_for_command=true is created, which ends the wait for the last command.
+     */
+    public static void recordReadyForCommand() {
+        if (commandFrame >= 0) {
+            (commandFastMode ? commandToReadyFramesFast : commandToReadyFrames).record(frames.get() - commandFrame);
+            commandFrame = -1;
+        }
+    }
+
+    public static void recordMessageSent(int bytes) {
+        messagesSent.incrementAndGet();
+        bytesSent.addAndGet(bytes);
+    }
+
+    public static void recordMessageReceived(int bytes) {
+        messagesReceived.incrementAndGet();
+        bytesReceived.addAndGet(bytes);
+    }
+
+    public static void recordWriteQueueDepth(int depth) {
+        long max;
+        do {
+            max = maxWriteQueueDepth.get();
+        } while (depth > max && !maxWriteQueueDepth.compareAndSet(max, depth));
+    }
+
+    /**
+     * Adds a value to the report that is read each time the report is made.
+     * @param name The name of the value in the report
+     * @param gauge Reads the current value. Called from whichever thread makes the report.
+     */
+    public static synchronized void registerGauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Clears everything recorded so far, apart from the frame count.
+     */
+    public static void reset() {
+        for (Histogram timer : timers) {
+            timer.reset();
+        }
+        commandToReadyFrames.reset();
+        commandToReadyFramesFast.reset();
+        messagesSent.set(0);
+        bytesSent.set(0);
+        messagesReceived.set(0);
+        bytesReceived.set(0);
+        maxWriteQueueDepth.set(0);
+    }
+
+    /**
+     * Creates a JSON report of everything recorded so far. It contains:
+     * "uptime_seconds" (long): The time since the mod was loaded
+     * "frames" (long): The number of frames since the mod was loaded
+     * "timings_us" (object): For each timed code path, the distribution of its duration in microseconds
+     * "command_to_ready_frames" (object): The distribution of frames from executing a command to being ready again
+     * "command_to_ready_frames_fast" (object): The same, for commands executed while in fast mode
+     * "sent" and "received" (object): The number of messages and bytes sent to and received from the external process
+     * "max_write_queue_depth" (long): The largest number of messages that have been waiting to be sent
+     * Followed by the current value of each registered gauge.
+     * Each distribution contains "count", "mean", "max", "p50", "p90" and "p99". Percentiles are the upper bound of
+     * the power-of-two bucket they fall in, so they overestimate by at most a factor of two.
+     * @return The report
+     */
+    public static synchronized String toJson() {
+        StringWriter out = new StringWriter();
+        try {
+            JsonWriter writer = new JsonWriter(out);
+            writer.beginObject();
+            writer.name("uptime_seconds").value(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startTime));
+            writer.name("frames").value(frames.get());
+            writer.name("timings_us").beginObject();
+            for (Timer timer : Timer.values()) {
+                writer.name(timer.jsonName);
+                timers[timer.ordinal()].write(writer, 1000.0);
+            }
+            writer.endObject();
+            writer.name("command_to_ready_frames");
+            commandToReadyFrames.write(writer, 1.0);
+            writer.name("command_to_ready_frames_fast");
+            commandToReadyFramesFast.write(writer, 1.0);
+            writer.name("sent").beginObject();
+            writer.name("messages").value(messagesSent.get());
+            writer.name("bytes").value(bytesSent.get());
+            writer.endObject();
+            writer.name("received").beginObject();
+            writer.name("messages").value(messagesReceived.get());
+            writer.name("bytes").value(bytesReceived.get());
+            writer.endObject();
+            writer.name("max_write_queue_depth").value(maxWriteQueueDepth.get());
+            for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+                writer.name(gauge.getKey()).value(gauge.getValue().getAsLong());
+            }
+            writer.endObject();
+            writer.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write metrics.", e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * A histogram of non-negative values, with one bucket per power of two.
+     */
+    private static class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            // Bucket i holds the values from 2^(i-1) to 2^i - 1, and bucket 0 holds zero.
+            counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            total.addAndGet(value);
+            long currentMax;
+            do {
+                currentMax = max.get();
+            } while (value > currentMax && !max.compareAndSet(currentMax, value));
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+            count.set(0);
+            total.set(0);
+            max.set(0);
+        }
+
+        private long percentile(double fraction, long n) {
+            long threshold = (long) Math.ceil(fraction * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= threshold) {
+                    return i == 0 ? 0 : (1L << i) - 1;
+                }
+            }
+            return max.get();
+        }
+
+        /**
+         * Writes the distribution, with every value divided by the given unit.
+         */
+        void write(JsonWriter writer, double unit) throws IOException {
+            long n = count.get();
+            writer.beginObject();
+            writer.name("count").value(n);
+            if (n > 0) {
+                writer.name("mean").value(round(total.get() / (double) n / unit));
+                writer.name("max").value(round(max.get() / unit));
+                writer.name("p50").value(round(Math.min(percentile(0.50, n), max.get()) / unit));
+                writer.name("p90").value(round(Math.min(percentile(0.90, n), max.get()) / unit));
+                writer.name("p99").value(round(Math.min(percentile(0.99, n), max.get()) / unit));
+            }
+            writer.endObject();
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 10.0) / 10.0;
+        }
+    }
+}
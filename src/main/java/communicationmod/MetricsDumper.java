@@ -0,0 +1,53 @@
+package communicationmod;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Periodically writes the metrics report to a file, so that the cost of the mod can be watched without sending
+ * commands. The report is written to a temporary file first and moved into place, so readers never see half of it.
+ */
+public class MetricsDumper implements Runnable {
+
+    private final Path path;
+    private final long intervalMillis;
+    private static final Logger logger = LogManager.getLogger(MetricsDumper.class.getName());
+
+    public MetricsDumper(String path, long intervalMillis) {
+        this.path = Paths.get(path).toAbsolutePath();
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void run() {
+        logger.info("Writing metrics to " + path + " every " + intervalMillis + "ms");
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(intervalMillis);
+                dump();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                logger.error("Could not write metrics to " + path + ". Shutting down metrics thread.", e);
+                return;
+            }
+        }
+    }
+
+    private void dump() throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(Files.newOutputStream(temporary), StandardCharsets.UTF_8)) {
+            writer.write(Metrics.toJson());
+            writer.write('\n');
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
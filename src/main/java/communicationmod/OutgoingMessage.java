@@ -0,0 +1,43 @@
+package communicationmod;
+
+/**
+ * A message waiting in the write queue. It is either text already, or a captured game state that the writer thread
+ * turns into text just before sending it.
+ */
+public final class OutgoingMessage {
+
+    private final StateCapture capture;
+    private String text;
+
+    private OutgoingMessage(String text, StateCapture capture) {
+        this.text = text;
+        this.capture = capture;
+    }
+
+    public static OutgoingMessage of(String text) {
+        return new OutgoingMessage(text, null);
+    }
+
+    public static OutgoingMessage of(StateCapture capture) {
+        return new OutgoingMessage(null, capture);
+    }
+
+    /**
+     * @return The captured state, or null if the message was text to begin with
+     */
+    public StateCapture getCapture() {
+        return capture;
+    }
+
+    /**
+     * Called on the writer thread, and on the trajectory thread when trajectories are written. A captured state is
+     * encoded by whichever calls first, and the text is kept for the other.
+     * @return The text of the message
+     */
+    public synchronized String getText() {
+        if (text == null) {
+            text = capture.encode();
+        }
+        return text;
+    }
+}
@@ -0,0 +1,41 @@
+package communicationmod;
+
+import basemod.ReflectionHacks;
+import com.megacrit.cardcrawl.dungeons.AbstractDungeon;
+import com.megacrit.cardcrawl.screens.GameOverScreen;
+
+/**
+ * Reads how the current run ended, from the death or victory screen.
+ */
+public class RunOutcome {
+
+    /**
+     * @return true if the run is over and its death or victory screen is up
+     */
+    public static boolean isGameOver() {
+        return CommandExecutor.isInDungeon()
+                && CommandExecutor.getCurrentChoiceType() == ChoiceScreenUtils.ChoiceType.GAME_OVER;
+    }
+
+    /**
+     * @return true if the run was won. Only meaningful while isGameOver() is true.
+     */
+    public static boolean isVictory() {
+        if (AbstractDungeon.screen == AbstractDungeon.CurrentScreen.DEATH) {
+            return GameOverScreen.isVictory;
+        }
+        return AbstractDungeon.screen == AbstractDungeon.CurrentScreen.VICTORY;
+    }
+
+    /**
+     * @return The final score of the run, or 0 if it is not on the death or victory screen
+     */
+    public static int getScore() {
+        if (AbstractDungeon.screen == AbstractDungeon.CurrentScreen.DEATH) {
+            return (int) ReflectionHacks.getPrivate(AbstractDungeon.deathScreen, GameOverScreen.class, "score");
+        } else if (AbstractDungeon.screen == AbstractDungeon.CurrentScreen.VICTORY) {
+            return (int) ReflectionHacks.getPrivate(AbstractDungeon.victoryScreen, GameOverScreen.class, "score");
+        }
+        return 0;
+    }
+}
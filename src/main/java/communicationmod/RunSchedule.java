@@ -0,0 +1,203 @@
+package communicationmod;
+
+import com.google.gson.Gson;
+import com.megacrit.cardcrawl.dungeons.AbstractDungeon;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Plays a list of runs given by the schedule command, one after another. Each run is started from the main menu as
+ * soon as the game gets there, and played by the external process as usual. When a scheduled run is over, it is
+ * abandoned as soon as its death or victory screen is up, without sending that state, and the next run is started.
+ * A summary of the run goes out as the message of the next state that is sent. A scheduled run that the external
+ * process leaves by itself is summarized as aborted once the game is back at the main menu.
+ */
+public class RunSchedule {
+
+    private static final Logger logger = LogManager.getLogger(RunSchedule.class.getName());
+
+    // The start commands of the runs, in order
+    private static final ArrayList<String> runs = new ArrayList<>();
+    private static int nextRun = 0;
+    private static boolean inRun = false;
+    private static boolean stepDue = false;
+    private static long runStartTime;
+    private static long runFrames;
+    // The floor the current run last reached, which is gone once the run has been left
+    private static int runFloor;
+    // The menu is still up for a few frames after a run is started, which must not be taken for leaving it
+    private static boolean runEnteredDungeon;
+
+    /**
+     * Schedules runs, which start once the game is at the main menu. Runs that are already scheduled are replaced.
+     * @param specs The runs, each as the arguments of a start command: class, then optionally ascension level, seed
+     * (optionally followed by "generated") and "fast"
+     */
+    public static void start(List<String> specs) {
+        runs.clear();
+        for (String spec : specs) {
+            runs.add("start " + spec);
+        }
+        nextRun = 0;
+        inRun = false;
+        // At the main menu, nothing is going to change until the first run is started.
+        stepDue = CommandExecutor.isStartCommandAvailable();
+        logger.info(String.format("Scheduled %d runs", runs.size()));
+    }
+
+    /**
+     * Reads the runs to schedule from a file, one run per line, in the same form as for start(). Blank lines and
+     * lines starting with "#" are skipped.
+     * @param path The file to read
+     * @return The runs in the file
+     * @throws InvalidCommandException If the file cannot be read
+     */
+    public static List<String> readSpecs(String path) throws InvalidCommandException {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new InvalidCommandException("Could not read run schedule " + path + ": " + e.getMessage());
+        }
+        ArrayList<String> specs = new ArrayList<>();
+        for (String line : lines) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                specs.add(line);
+            }
+        }
+        return specs;
+    }
+
+    /**
+     * Drops the runs that have not started yet. A run that is being played is left to the external process.
+     */
+    public static void stop() {
+        runs.clear();
+        nextRun = 0;
+        inRun = false;
+        stepDue = false;
+    }
+
+    /**
+     * @return true from when runs are scheduled until the last of them has been abandoned
+     */
+    public static boolean isRunning() {
+        return inRun || nextRun < runs.size();
+    }
+
+    /**
+     * @return The number of scheduled runs that have not started yet
+     */
+    public static int getRemainingRuns() {
+        return runs.size() - nextRun;
+    }
+
+    /**
+     * @return true if the game is ready for a command at the end of a scheduled run, or at the main menu with a run
+     * still to start, where the scheduler acts instead of the external process
+     */
+    public static boolean isAtRunBoundary() {
+        if (!isRunning() || !GameStateListener.isReadyForCommand()) {
+            return false;
+        }
+        if (inRun && RunOutcome.isGameOver()) {
+            return true;
+        }
+        // Back at the main menu, either to start the next run or because the current one was left early
+        return (!inRun || runEnteredDungeon) && CommandExecutor.isStartCommandAvailable();
+    }
+
+    /**
+     * Called at a run boundary, in place of sending the state.
+     */
+    public static void signalStepReady() {
+        stepDue = true;
+    }
+
+    /**
+     * @return true if a run should be ended or started now
+     */
+    public static boolean isStepDue() {
+        return stepDue;
+    }
+
+    /**
+     * Called once per update, to count the frames a run takes.
+     */
+    public static void countFrame() {
+        if (inRun) {
+            runFrames++;
+            if (CommandExecutor.isInDungeon()) {
+                runEnteredDungeon = true;
+                runFloor = AbstractDungeon.floorNum;
+            }
+        }
+    }
+
+    /**
+     * Abandons the run that is over, or starts the next one.
+     * @return Whether the state changed, as from CommandExecutor.executeCommand
+     * @throws InvalidCommandException If the next run cannot be started, which ends the schedule
+     */
+    public static boolean executeNextStep() throws InvalidCommandException {
+        stepDue = false;
+        if (inRun) {
+            if (RunOutcome.isGameOver()) {
+                finishRun(false);
+                return CommandLog.executeCommand("abandon");
+            }
+            finishRun(true);
+            if (!isRunning()) {
+                // The main menu state was held back for a run that will now never start
+                CommunicationMod.mustSendGameState = true;
+                return false;
+            }
+        }
+        String run = runs.get(nextRun++);
+        try {
+            CommandLog.executeCommand(run);
+        } catch (InvalidCommandException e) {
+            stop();
+            throw new InvalidCommandException(String.format("Scheduled run %d (\"%s\") failed: %s", nextRun - 1, run, e.getMessage()));
+        }
+        inRun = true;
+        runStartTime = System.nanoTime();
+        runFrames = 0;
+        runFloor = 0;
+        runEnteredDungeon = false;
+        return true;
+    }
+
+    /**
+     * @param aborted Whether the run was left before it was over, so it has no outcome
+     */
+    private static void finishRun(boolean aborted) {
+        LinkedHashMap<String, Object> summary = new LinkedHashMap<>();
+        summary.put("run", nextRun - 1);
+        summary.put("start", runs.get(nextRun - 1));
+        summary.put("aborted", aborted);
+        summary.put("victory", !aborted && RunOutcome.isVictory());
+        summary.put("floor", aborted ? runFloor : AbstractDungeon.floorNum);
+        summary.put("score", aborted ? 0 : RunOutcome.getScore());
+        summary.put("seconds", (System.nanoTime() - runStartTime) / 1e9);
+        summary.put("frames", runFrames);
+        summary.put("remaining_runs", getRemainingRuns());
+        String message = new Gson().toJson(summary);
+        logger.info("Finished scheduled run: " + message);
+        inRun = false;
+        if (nextRun == runs.size()) {
+            runs.clear();
+            nextRun = 0;
+        }
+        GameStateListener.setMessage(message);
+    }
+}
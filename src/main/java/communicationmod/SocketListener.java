@@ -0,0 +1,163 @@
+package communicationmod;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Accepts connections from an external process over a loopback TCP socket, as an alternative to launching the process
+ * ourselves and talking over its stdin and stdout. One client is served at a time. Each client must send a ready
+ * message first, exactly like a child process, after which it shares the same read and write queues. When a client
+ * disconnects, the listener goes back to waiting for the next one, so the external process can be restarted without
+ * restarting the game.
+ */
+public class SocketListener implements Runnable {
+
+    private static final Logger logger = LogManager.getLogger(SocketListener.class.getName());
+
+    private final int port;
+    private final BlockingQueue<String> readQueue;
+    private final BlockingQueue<OutgoingMessage> writeQueue;
+    private final boolean verbose;
+    private final int handshakeTimeoutMillis;
+
+    private volatile ServerSocket serverSocket;
+    private volatile Socket clientSocket;
+    private volatile boolean connected = false;
+    private volatile boolean newConnection = false;
+    private volatile int connectionId = 0;
+
+    public SocketListener(int port, BlockingQueue<String> readQueue, BlockingQueue<OutgoingMessage> writeQueue, boolean verbose, int handshakeTimeoutMillis) {
+        this.port = port;
+        this.readQueue = readQueue;
+        this.writeQueue = writeQueue;
+        this.verbose = verbose;
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+    }
+
+    public void run() {
+        try (ServerSocket server = new ServerSocket()) {
+            serverSocket = server;
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            logger.info("Waiting for external process on port " + port);
+            while (!Thread.currentThread().isInterrupted()) {
+                Socket socket = server.accept();
+                serveClient(socket);
+            }
+        } catch (IOException e) {
+            if (!Thread.currentThread().isInterrupted()) {
+                logger.error("Socket listener on port " + port + " failed. Shutting down listener thread.", e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Socket listener thread finished.");
+    }
+
+    /**
+     * @return true if a client has completed the ready handshake and is still connected
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Reports each new client exactly once, so that the game thread can send it the current state.
+     * @return true if a client has connected since the last call
+     */
+    public boolean consumeNewConnection() {
+        if (newConnection) {
+            newConnection = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return A number that changes each time a new client completes the ready handshake
+     */
+    public int getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * Closes the listening socket and any connected client. Closing is required because interrupting a thread does
+     * not wake it from a blocking accept or read.
+     */
+    public void shutdown() {
+        closeQuietly(clientSocket);
+        ServerSocket server = serverSocket;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                logger.error("Could not close socket listener.", e);
+            }
+        }
+    }
+
+    private void serveClient(Socket socket) throws InterruptedException {
+        clientSocket = socket;
+        Thread readThread = null;
+        Thread writeThread = null;
+        try {
+            socket.setTcpNoDelay(true);
+            DataReader reader = new DataReader(readQueue, socket.getInputStream(), verbose);
+            socket.setSoTimeout(handshakeTimeoutMillis);
+            String message = reader.readMessage();
+            if (message == null) {
+                logger.info("External process disconnected before signalling it was ready.");
+                return;
+            }
+            socket.setSoTimeout(0);
+            logger.info(String.format("Received message from external process: %s", message));
+            // Anything still queued was meant for the previous client
+            writeQueue.clear();
+            DataWriter writer = new DataWriter(writeQueue, socket.getOutputStream(), verbose);
+            Handshake handshake = Handshake.parse(message);
+            handshake.configure(writer);
+            handshake.configure(reader);
+            writeThread = new Thread(writer);
+            writeThread.start();
+            readThread = new Thread(reader);
+            readThread.start();
+            connectionId += 1;
+            connected = true;
+            newConnection = true;
+            readThread.join();
+            logger.info("External process disconnected.");
+        } catch (SocketTimeoutException e) {
+            logger.error("Timed out while waiting for signal from external process.");
+        } catch (IOException e) {
+            logger.error("Connection to external process failed.", e);
+        } finally {
+            connected = false;
+            closeQuietly(socket);
+            clientSocket = null;
+            if (readThread != null) {
+                readThread.interrupt();
+            }
+            if (writeThread != null) {
+                writeThread.interrupt();
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.error("Could not close connection to external process.", e);
+            }
+        }
+    }
+}
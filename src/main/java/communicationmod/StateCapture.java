@@ -0,0 +1,368 @@
+package communicationmod;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A JsonWriter that records what is written to it instead of formatting it, so that the game state can be captured on
+ * the game thread and turned into text on the writer thread. Only Strings and boxed numbers are kept, which do not
+ * change once captured, so the capture can be encoded while the game moves on. Escaping strings, formatting numbers
+ * and building the message are what is left for the writer thread, and are timed there as encode_state.
+ */
+public class StateCapture extends JsonWriter {
+
+    private static final byte BEGIN_ARRAY = 0;
+    private static final byte END_ARRAY = 1;
+    private static final byte BEGIN_OBJECT = 2;
+    private static final byte END_OBJECT = 3;
+    private static final byte NAME = 4;
+    private static final byte STRING = 5;
+    private static final byte JSON = 6;
+    private static final byte NULL = 7;
+    private static final byte TRUE = 8;
+    private static final byte FALSE = 9;
+    private static final byte LONG = 10;
+    private static final byte DOUBLE = 11;
+    private static final byte NUMBER = 12;
+
+    private static final Writer UNUSED_WRITER = new StringWriter(0);
+
+    // The largest capture and encoded state so far, so that later ones rarely have to grow their buffers. The first
+    // is only used on the game thread. The second is used by both the writer and trajectory threads, since both
+    // encode messages. Two encodes can race to raise it, but losing one of them only makes a later buffer grow.
+    private static int expectedTokens = 1024;
+    private static volatile int expectedLength = 16 * 1024;
+
+    // The embedded JSON last turned into a tree, such as the cached map, and its tree. Only used on the game thread.
+    private static String lastEmbeddedJson = null;
+    private static JsonElement lastEmbeddedTree = null;
+
+    private byte[] tokens = new byte[expectedTokens];
+    // The String or Number of each token that has one
+    private Object[] objects = new Object[expectedTokens];
+    // The long value, or the bits of the double value, of each token that has one
+    private long[] numbers = new long[expectedTokens];
+    private int size = 0;
+
+    public StateCapture() {
+        super(UNUSED_WRITER);
+    }
+
+    /**
+     * Creates a JsonWriter with the same output settings as a default Gson instance, so that the format of the
+     * messages does not depend on how they were produced.
+     * @param out The destination of the JSON
+     * @return The new JsonWriter
+     */
+    public static JsonWriter newJsonWriter(Writer out) {
+        JsonWriter writer = new JsonWriter(out);
+        writer.setLenient(true);
+        writer.setHtmlSafe(true);
+        writer.setSerializeNulls(false);
+        return writer;
+    }
+
+    /**
+     * Writes everything that was captured as JSON. May be called from any thread once the capture is complete.
+     * @return The JSON, exactly as if it had been written to a JsonWriter from newJsonWriter()
+     */
+    public String encode() {
+        long startTime = System.nanoTime();
+        StringWriter out = new StringWriter(expectedLength);
+        try {
+            JsonWriter writer = newJsonWriter(out);
+            replay(writer);
+            writer.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not encode captured state.", e);
+        }
+        expectedLength = Math.max(expectedLength, out.getBuffer().length());
+        Metrics.recordTime(Metrics.Timer.ENCODE_STATE, startTime);
+        return out.toString();
+    }
+
+    /**
+     * Builds what was captured as a tree of JsonElements, without writing it as text and parsing that back. Values
+     * that JSON from newJsonWriter() would leave out, which are null values in objects, are left out of the tree too.
+     * Embedded JSON is parsed, but the tree of the last embedded JSON is reused while the same string is embedded
+     * again, so an unchanged map is only parsed once. Those trees are shared between calls, and must not be changed.
+     * Only called on the game thread.
+     * @return The root of the tree
+     */
+    public JsonElement toJsonTree() {
+        ArrayList<JsonElement> containers = new ArrayList<>();
+        JsonElement root = JsonNull.INSTANCE;
+        String name = null;
+        for (int i = 0; i < size; i++) {
+            JsonElement value;
+            switch (tokens[i]) {
+                case BEGIN_ARRAY:
+                    value = new JsonArray();
+                    break;
+                case BEGIN_OBJECT:
+                    value = new JsonObject();
+                    break;
+                case END_ARRAY:
+                case END_OBJECT:
+                    containers.remove(containers.size() - 1);
+                    continue;
+                case NAME:
+                    name = (String) objects[i];
+                    continue;
+                case STRING:
+                    value = objects[i] == null ? JsonNull.INSTANCE : new JsonPrimitive((String) objects[i]);
+                    break;
+                case JSON:
+                    value = parseEmbedded((String) objects[i]);
+                    break;
+                case NULL:
+                    value = JsonNull.INSTANCE;
+                    break;
+                case TRUE:
+                    value = new JsonPrimitive(true);
+                    break;
+                case FALSE:
+                    value = new JsonPrimitive(false);
+                    break;
+                case LONG:
+                    value = new JsonPrimitive(numbers[i]);
+                    break;
+                case DOUBLE:
+                    value = new JsonPrimitive(Double.longBitsToDouble(numbers[i]));
+                    break;
+                case NUMBER:
+                    value = objects[i] == null ? JsonNull.INSTANCE : new JsonPrimitive((Number) objects[i]);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown token " + tokens[i]);
+            }
+            if (containers.isEmpty()) {
+                root = value;
+            } else {
+                JsonElement container = containers.get(containers.size() - 1);
+                if (container.isJsonArray()) {
+                    container.getAsJsonArray().add(value);
+                } else if (!value.isJsonNull()) {
+                    container.getAsJsonObject().add(name, value);
+                }
+            }
+            if (tokens[i] == BEGIN_ARRAY || tokens[i] == BEGIN_OBJECT) {
+                containers.add(value);
+            }
+        }
+        return root;
+    }
+
+    private static JsonElement parseEmbedded(String json) {
+        // Compared by identity, since the converter embeds the same String for as long as the map is unchanged
+        if (json != lastEmbeddedJson) {
+            lastEmbeddedTree = JsonParser.parseString(json);
+            lastEmbeddedJson = json;
+        }
+        return lastEmbeddedTree;
+    }
+
+    /**
+     * Hashes what was captured without encoding it. Two captures of the same values have the same hash, whatever
+     * thread or run they were made on.
+     * @param ignoredName A field name whose values are left out of the hash, such as one holding random ids
+     * @return The CRC32 of the captured tokens and values
+     */
+    public long hash(String ignoredName) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < size; i++) {
+            if (tokens[i] == NAME && ignoredName.equals(objects[i])) {
+                i = endOfValue(i + 1);
+                continue;
+            }
+            crc.update(tokens[i]);
+            if (objects[i] != null) {
+                byte[] bytes = objects[i].toString().getBytes(StandardCharsets.UTF_8);
+                crc.update(bytes, 0, bytes.length);
+            } else if (tokens[i] == LONG || tokens[i] == DOUBLE) {
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    crc.update((int) (numbers[i] >>> shift));
+                }
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * @return The index of the last token of the value that starts at the given index
+     */
+    private int endOfValue(int start) {
+        int depth = 0;
+        int i = start;
+        for (; i < size; i++) {
+            if (tokens[i] == BEGIN_ARRAY || tokens[i] == BEGIN_OBJECT) {
+                depth++;
+            } else if (tokens[i] == END_ARRAY || tokens[i] == END_OBJECT) {
+                depth--;
+            }
+            if (depth == 0) {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Writes everything that was captured to the given writer, in order. May be called from any thread once the
+     * capture is complete.
+     */
+    public void replay(JsonWriter writer) throws IOException {
+        for (int i = 0; i < size; i++) {
+            switch (tokens[i]) {
+                case BEGIN_ARRAY:
+                    writer.beginArray();
+                    break;
+                case END_ARRAY:
+                    writer.endArray();
+                    break;
+                case BEGIN_OBJECT:
+                    writer.beginObject();
+                    break;
+                case END_OBJECT:
+                    writer.endObject();
+                    break;
+                case NAME:
+                    writer.name((String) objects[i]);
+                    break;
+                case STRING:
+                    writer.value((String) objects[i]);
+                    break;
+                case JSON:
+                    writer.jsonValue((String) objects[i]);
+                    break;
+                case NULL:
+                    writer.nullValue();
+                    break;
+                case TRUE:
+                    writer.value(true);
+                    break;
+                case FALSE:
+                    writer.value(false);
+                    break;
+                case LONG:
+                    writer.value(numbers[i]);
+                    break;
+                case DOUBLE:
+                    writer.value(Double.longBitsToDouble(numbers[i]));
+                    break;
+                case NUMBER:
+                    writer.value((Number) objects[i]);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown token " + tokens[i]);
+            }
+        }
+    }
+
+    private StateCapture add(byte token, Object object, long number) {
+        if (size == tokens.length) {
+            int newLength = tokens.length * 2;
+            tokens = Arrays.copyOf(tokens, newLength);
+            objects = Arrays.copyOf(objects, newLength);
+            numbers = Arrays.copyOf(numbers, newLength);
+            expectedTokens = Math.max(expectedTokens, newLength);
+        }
+        tokens[size] = token;
+        objects[size] = object;
+        numbers[size] = number;
+        size++;
+        return this;
+    }
+
+    @Override
+    public JsonWriter beginArray() {
+        return add(BEGIN_ARRAY, null, 0);
+    }
+
+    @Override
+    public JsonWriter endArray() {
+        return add(END_ARRAY, null, 0);
+    }
+
+    @Override
+    public JsonWriter beginObject() {
+        return add(BEGIN_OBJECT, null, 0);
+    }
+
+    @Override
+    public JsonWriter endObject() {
+        return add(END_OBJECT, null, 0);
+    }
+
+    @Override
+    public JsonWriter name(String name) {
+        if (name == null) {
+            throw new NullPointerException("name == null");
+        }
+        return add(NAME, name, 0);
+    }
+
+    @Override
+    public JsonWriter value(String value) {
+        return add(STRING, value, 0);
+    }
+
+    @Override
+    public JsonWriter jsonValue(String value) {
+        return add(JSON, value, 0);
+    }
+
+    @Override
+    public JsonWriter nullValue() {
+        return add(NULL, null, 0);
+    }
+
+    @Override
+    public JsonWriter value(boolean value) {
+        return add(value ? TRUE : FALSE, null, 0);
+    }
+
+    @Override
+    public JsonWriter value(Boolean value) {
+        if (value == null) {
+            return nullValue();
+        }
+        return value(value.booleanValue());
+    }
+
+    @Override
+    public JsonWriter value(double value) {
+        return add(DOUBLE, null, Double.doubleToRawLongBits(value));
+    }
+
+    @Override
+    public JsonWriter value(long value) {
+        return add(LONG, null, value);
+    }
+
+    @Override
+    public JsonWriter value(Number value) {
+        return add(NUMBER, value, 0);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
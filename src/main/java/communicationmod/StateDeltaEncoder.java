@@ -0,0 +1,111 @@
+package communicationmod;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+
+import java.util.Map;
+
+/**
+ * Turns successive game states into delta messages, so that only the parts of the state that changed are sent.
+ * Every message carries a "state_version" that increases by one with each state sent. A delta message looks like
+ * {"state_version":N,"base_version":N-1,"delta":{...}}, where "delta" is a JSON merge patch (RFC 7396) that turns
+ * the state of version N-1 into the state of version N. The first state, and any state after a resync, is sent in
+ * full with its "state_version" added.
+ * The "error" and "message" fields describe a single response rather than the game, so they are never diffed. They
+ * are copied into the delta message whenever they are present.
+ * States are diffed as the trees built from their captures, so the full state is never written as text or parsed on
+ * the game thread. Only the message is written. Arrays are compared whole, since a merge patch cannot change part of
+ * an array: cards are not matched up by uuid, so a card moving from the hand to the discard pile sends both piles.
+ */
+public class StateDeltaEncoder {
+
+    private static final String VERSION_KEY = "state_version";
+    private static final String BASE_VERSION_KEY = "base_version";
+    private static final String DELTA_KEY = "delta";
+    private static final String[] RESPONSE_KEYS = {"error", "message"};
+
+    // Removed fields are written as nulls in a merge patch, so they must survive serialization.
+    private final Gson gson = new GsonBuilder().serializeNulls().create();
+
+    private JsonObject lastState = null;
+    private long version = 0;
+
+    /**
+     * Encodes the given state as a delta against the last encoded state, or in full if there is none.
+     * @param state The full state captured by GameStateConverter
+     * @return The message to send to the external process
+     */
+    public String encode(StateCapture state) {
+        JsonObject current = state.toJsonTree().getAsJsonObject();
+        JsonObject response = new JsonObject();
+        for (String key : RESPONSE_KEYS) {
+            JsonElement value = current.remove(key);
+            if (value != null) {
+                response.add(key, value);
+            }
+        }
+        version += 1;
+        JsonObject message = new JsonObject();
+        message.addProperty(VERSION_KEY, version);
+        if (lastState == null) {
+            copyMembers(current, message);
+        } else {
+            message.addProperty(BASE_VERSION_KEY, version - 1);
+            message.add(DELTA_KEY, diff(lastState, current));
+        }
+        copyMembers(response, message);
+        lastState = current;
+        return gson.toJson(message);
+    }
+
+    /**
+     * Forgets the last state, so that the next state is sent in full. Versions keep increasing.
+     */
+    public void reset() {
+        lastState = null;
+    }
+
+    /**
+     * @return The version of the last state encoded
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Creates a merge patch that turns base into target. Nested objects are diffed recursively, while arrays and
+     * other values are replaced whole when they differ.
+     */
+    static JsonObject diff(JsonObject base, JsonObject target) {
+        JsonObject patch = new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : base.entrySet()) {
+            if (!target.has(entry.getKey())) {
+                patch.add(entry.getKey(), JsonNull.INSTANCE);
+            }
+        }
+        for (Map.Entry<String, JsonElement> entry : target.entrySet()) {
+            JsonElement oldValue = base.get(entry.getKey());
+            JsonElement newValue = entry.getValue();
+            if (oldValue == null) {
+                patch.add(entry.getKey(), newValue);
+            } else if (oldValue.isJsonObject() && newValue.isJsonObject()) {
+                JsonObject nested = diff(oldValue.getAsJsonObject(), newValue.getAsJsonObject());
+                if (nested.size() > 0) {
+                    patch.add(entry.getKey(), nested);
+                }
+            } else if (!oldValue.equals(newValue)) {
+                patch.add(entry.getKey(), newValue);
+            }
+        }
+        return patch;
+    }
+
+    private static void copyMembers(JsonObject source, JsonObject destination) {
+        for (Map.Entry<String, JsonElement> entry : source.entrySet()) {
+            destination.add(entry.getKey(), entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package communicationmod;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+
+/**
+ * The parts of the game state JSON that are written from plain values rather than from game objects: the fields of
+ * cards, powers and map nodes, and the reflective lookup of the optional fields of powers. GameStateConverter reads
+ * the values out of the game and passes them here, and the benchmarks pass in values from their fixtures, so both run
+ * the same code.
+ */
+public class StateJson {
+
+    // basePower gives the base power for Malleable
+    // maxAmt gives the max amount of damage per turn for Invincible
+    // storedAmount gives the number of stacks per turn for Flight
+    // hpLoss gives the amount of HP lost per turn with Combust
+    // cardsDoubledThisTurn gives the number of cards already doubled with Echo Form
+    public static final String[] MISC_FIELD_NAMES = {
+            "basePower", "maxAmt", "storedAmount", "hpLoss", "cardsDoubledThisTurn"
+    };
+    // justApplied is used with a variety of powers to prevent them from expiring immediately (cast from bool)
+    // skipFirst is the same as justApplied, for the Ritual power
+    public static final String[] JUST_APPLIED_FIELD_NAMES = {
+            "justApplied", "skipFirst"
+    };
+
+    /**
+     * Writes a value that this class does not know the type of, such as the card held by a power.
+     */
+    public interface ValueWriter<T> {
+        void write(JsonWriter writer, T value) throws IOException;
+    }
+
+    /**
+     * The fields of a power class that are included in its JSON, looked up once per class.
+     * Absent fields are null, or left out of the arrays, so a class without them costs no further lookups.
+     */
+    public static class PowerFields {
+        private static final ClassValue<PowerFields> powerFields = new ClassValue<PowerFields>() {
+            @Override
+            protected PowerFields computeValue(Class<?> type) {
+                return new PowerFields(type);
+            }
+        };
+
+        private final Field damage;
+        private final Field card;
+        private final Field[] misc;
+        private final Field[] justApplied;
+
+        private PowerFields(Class<?> powerClass) {
+            damage = findDeclaredField(powerClass, "damage");
+            card = findDeclaredField(powerClass, "card");
+            misc = findDeclaredFields(powerClass, MISC_FIELD_NAMES);
+            justApplied = findDeclaredFields(powerClass, JUST_APPLIED_FIELD_NAMES);
+        }
+
+        /**
+         * @param powerClass The class of a power
+         * @return The fields of the class, looked up on the first call for it
+         */
+        public static PowerFields of(Class<?> powerClass) {
+            return powerFields.get(powerClass);
+        }
+
+        public Object getDamage(Object power) {
+            return getFieldValue(damage, power);
+        }
+
+        public Object getCard(Object power) {
+            return getFieldValue(card, power);
+        }
+
+        public Object getMisc(Object power) {
+            return getFirstFieldValue(misc, power);
+        }
+
+        public Object getJustApplied(Object power) {
+            return getFirstFieldValue(justApplied, power);
+        }
+    }
+
+    /**
+     * Writes the fields of a card object, as described in GameStateConverter.writeCard().
+     * @param isPlayable Whether the card can be played, or null outside of combat, where it is left out
+     */
+    public static void writeCardFields(JsonWriter writer, String name, String uuid, int misc, Boolean isPlayable,
+                                       int cost, int upgrades, String id, String type, String rarity,
+                                       boolean hasTarget, boolean exhausts, boolean ethereal) throws IOException {
+        writer.name("name").value(name);
+        writer.name("uuid").value(uuid);
+        if(misc != 0) {
+            writer.name("misc").value(misc);
+        }
+        if(isPlayable != null) {
+            writer.name("is_playable").value((boolean)isPlayable);
+        }
+        writer.name("cost").value(cost);
+        writer.name("upgrades").value(upgrades);
+        writer.name("id").value(id);
+        writer.name("type").value(type);
+        writer.name("rarity").value(rarity);
+        writer.name("has_target").value(hasTarget);
+        writer.name("exhausts").value(exhausts);
+        writer.name("ethereal").value(ethereal);
+    }
+
+    /**
+     * Writes a power object, as described in GameStateConverter.writeCreaturePowers(). The optional fields are read
+     * from the power through its PowerFields.
+     * @param power The power, whose class declares the optional fields
+     * @param cardWriter Writes the card held by the power, if it has one
+     */
+    @SuppressWarnings("unchecked")
+    public static <C> void writePower(JsonWriter writer, Object power, String id, String name, int amount,
+                                      ValueWriter<C> cardWriter) throws IOException {
+        PowerFields fields = PowerFields.of(power.getClass());
+        writer.beginObject();
+        writer.name("id").value(id);
+        writer.name("name").value(name);
+        writer.name("amount").value(amount);
+        Object damage = fields.getDamage(power);
+        if (damage != null) {
+            writer.name("damage").value((int)damage);
+        }
+        Object card = fields.getCard(power);
+        if (card != null) {
+            writer.name("card");
+            cardWriter.write(writer, (C)card);
+        }
+        Object misc = fields.getMisc(power);
+        if (misc != null) {
+            writer.name("misc").value((int)misc);
+        }
+        Object justApplied = fields.getJustApplied(power);
+        if (justApplied != null) {
+            writer.name("just_applied").value((boolean)justApplied);
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Writes the coordinates and symbol of a map node, as described in GameStateConverter.writeMapRoomNode().
+     */
+    public static void writeMapNodeFields(JsonWriter writer, int x, int y, String symbol) throws IOException {
+        writer.name("x").value(x);
+        writer.name("y").value(y);
+        writer.name("symbol").value(symbol);
+    }
+
+    /**
+     * Writes a node of the map, with its parents and children, as described in GameStateConverter.writeMap().
+     * @param edges The edges of the node, four values each: source x, source y, destination x, destination y.
+     * Edges out of the node give its children, and the others give its parents.
+     */
+    public static void writeMapNode(JsonWriter writer, int x, int y, String symbol, int[] edges) throws IOException {
+        writer.beginObject();
+        writeMapNodeFields(writer, x, y, symbol);
+        writer.name("parents").beginArray();
+        for (int i = 0; i < edges.length; i += 4) {
+            if (edges[i] != x || edges[i + 1] != y) {
+                writeCoordinates(writer, edges[i], edges[i + 1]);
+            }
+        }
+        writer.endArray();
+        writer.name("children").beginArray();
+        for (int i = 0; i < edges.length; i += 4) {
+            if (edges[i] == x && edges[i + 1] == y) {
+                writeCoordinates(writer, edges[i + 2], edges[i + 3]);
+            }
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    public static void writeCoordinates(JsonWriter writer, int x, int y) throws IOException {
+        writer.beginObject();
+        writer.name("x").value(x);
+        writer.name("y").value(y);
+        writer.endObject();
+    }
+
+    /**
+     * Looks up a field declared by the given class itself, ignoring superclasses, and makes it accessible.
+     * @param objectClass The class to look for the field in
+     * @param fieldName The name of the field
+     * @return The field, or null if the class does not declare it
+     */
+    public static Field findDeclaredField(Class<?> objectClass, String fieldName) {
+        for (Field field : objectClass.getDeclaredFields()) {
+            if (field.getName().equals(fieldName)) {
+                field.setAccessible(true);
+                return field;
+            }
+        }
+        return null;
+    }
+
+    private static Field[] findDeclaredFields(Class<?> objectClass, String[] fieldNames) {
+        ArrayList<Field> fields = new ArrayList<>();
+        for (String fieldName : fieldNames) {
+            Field field = findDeclaredField(objectClass, fieldName);
+            if (field != null) {
+                fields.add(field);
+            }
+        }
+        return fields.toArray(new Field[0]);
+    }
+
+    /**
+     * Reads the given field of the object.
+     * @param field The field to read, or null
+     * @param object The object to read the field from
+     * @return The value of the field, or null if the field is null or could not be read
+     */
+    public static Object getFieldValue(Field field, Object object) {
+        if (field == null) {
+            return null;
+        }
+        try {
+            return field.get(object);
+        } catch(IllegalAccessException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reads the given fields of the object in order, and returns the first value that is not null.
+     */
+    private static Object getFirstFieldValue(Field[] fields, Object object) {
+        for (Field field : fields) {
+            Object value = getFieldValue(field, object);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+}
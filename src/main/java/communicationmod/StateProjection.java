@@ -0,0 +1,95 @@
+package communicationmod;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The sections of the game state that the external process subscribed to with the subscribe command. A section is a
+ * field of "game_state", such as "gold", or a field of "combat_state", such as "combat_state.hand". The converter
+ * asks before writing each section, so sections that were not subscribed to are never read from the game.
+ * The fields outside "game_state", such as "available_commands" and "ready_for_command", are always sent.
+ */
+public class StateProjection {
+
+    private static final List<String> GAME_STATE_FIELDS = Arrays.asList(
+            "screen_name", "is_screen_up", "screen_type", "room_phase", "action_phase", "current_action",
+            "room_type", "current_hp", "max_hp", "floor", "act", "act_boss", "gold", "seed", "class",
+            "ascension_level", "relics", "deck", "potions", "map", "choice_list", "combat_state", "screen_state",
+            "keys"
+    );
+    private static final List<String> COMBAT_STATE_FIELDS = Arrays.asList(
+            "monsters", "draw_pile", "discard_pile", "exhaust_pile", "hand", "limbo", "card_in_play", "player",
+            "turn", "cards_discarded_this_turn", "times_damaged"
+    );
+
+    // null while everything is sent
+    private static HashSet<String> sections = null;
+    // The sections that contain a subscribed section, and are only partly sent
+    private static HashSet<String> parents = new HashSet<>();
+    // Set while the state is written for something other than the client, which always gets every section
+    private static boolean bypassed = false;
+
+    /**
+     * Sends only the given sections from now on.
+     * @param paths The sections, as the field names of game_state or "combat_state." followed by a field name
+     * @throws InvalidCommandException If a section does not exist
+     */
+    public static void subscribe(Collection<String> paths) throws InvalidCommandException {
+        HashSet<String> newSections = new HashSet<>();
+        HashSet<String> newParents = new HashSet<>();
+        for (String path : paths) {
+            String[] parts = path.split("\\.");
+            boolean valid;
+            if (parts.length == 1) {
+                valid = GAME_STATE_FIELDS.contains(parts[0]);
+            } else {
+                valid = parts.length == 2 && parts[0].equals("combat_state") && COMBAT_STATE_FIELDS.contains(parts[1]);
+                newParents.add(parts[0]);
+            }
+            if (!valid) {
+                throw new InvalidCommandException("Unknown section " + path + ". Sections: " + GAME_STATE_FIELDS
+                        + ", and combat_state." + COMBAT_STATE_FIELDS);
+            }
+            newSections.add(path);
+        }
+        sections = newSections;
+        parents = newParents;
+    }
+
+    /**
+     * Sends the whole state from now on.
+     */
+    public static void clear() {
+        sections = null;
+        parents = new HashSet<>();
+    }
+
+    /**
+     * @return The subscribed sections, or an empty set while everything is sent
+     */
+    public static Collection<String> getSections() {
+        return sections == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(sections);
+    }
+
+    /**
+     * Makes every section be written, without changing the subscription, until called again with false.
+     */
+    public static void setBypassed(boolean bypass) {
+        bypassed = bypass;
+    }
+
+    /**
+     * @param section A field of game_state, or "combat_state." followed by a field of combat_state
+     * @return true if the section should be written
+     */
+    public static boolean includes(String section) {
+        if (bypassed || sections == null || sections.contains(section) || parents.contains(section)) {
+            return true;
+        }
+        // combat_state is the only section with sections of its own
+        return section.startsWith("combat_state.") && sections.contains("combat_state");
+    }
+}
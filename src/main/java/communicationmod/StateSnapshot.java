@@ -0,0 +1,394 @@
+package communicationmod;
+
+import com.badlogic.gdx.math.RandomXS128;
+import com.megacrit.cardcrawl.actions.GameActionManager;
+import com.megacrit.cardcrawl.characters.AbstractPlayer;
+import com.megacrit.cardcrawl.core.CardCrawlGame;
+import com.megacrit.cardcrawl.core.Settings;
+import com.megacrit.cardcrawl.dungeons.AbstractDungeon;
+import com.megacrit.cardcrawl.random.Random;
+import com.megacrit.cardcrawl.rooms.AbstractRoom;
+import com.megacrit.cardcrawl.ui.panels.EnergyPanel;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory copy of the run, taken and restored by the snapshot and restore commands.
+ * The game's SaveFile only describes the run as it was on entering the current room, and loading one builds a new
+ * dungeon, which takes seconds. Instead, this copies the value of every field of every object of the run and the
+ * current combat: the player with their piles, relics, potions, orbs and powers, the room with its monsters, the
+ * action manager and the RNGs, along with the contents of their collections and arrays. The numbers, strings and enums
+ * held in the static fields of the dungeon, the room, the game and the run's settings are copied too. Restoring
+ * writes the values back into the same objects, so anything created since the snapshot becomes unreachable and
+ * anything discarded since is put back.
+ * Screens, UI, effects, the map and libGDX and other library objects are shared rather than copied, and so is anything
+ * that is only reachable through them. The libGDX random number generators behind the game's Random objects are the
+ * exception, and are copied by their seeds, so the RNG streams are rolled back along with their counters.
+ * A snapshot can only be restored in the room it was taken in, since entering a room does more than change fields,
+ * and with the same screen up, since screens are not restored. The time taken to save and restore snapshots is
+ * recorded in the metrics.
+ */
+public class StateSnapshot {
+
+    private static final int DEFAULT_CAPACITY = 16;
+    // The static values of these classes are copied, along with the static objects that belong to the run
+    private static final Class<?>[] STATIC_ROOTS = {
+            AbstractDungeon.class, AbstractRoom.class, AbstractPlayer.class, GameActionManager.class, EnergyPanel.class,
+            CardCrawlGame.class, Settings.class
+    };
+    // Besides the RNGs, the static objects that belong to the run. The others are screens, UI, effects and card
+    // pools, which do not change within a room or are not restored.
+    private static final Set<String> STATIC_OBJECT_ROOTS = new HashSet<>(Arrays.asList(
+            "AbstractDungeon.player", "AbstractDungeon.actionManager"
+    ));
+    // Settings also holds the options of the game, which are left alone. Only these fields belong to the run.
+    private static final Set<String> SETTINGS_ROOTS = new HashSet<>(Arrays.asList(
+            "seed", "seedSet", "specialSeed", "isTrial", "isDailyRun", "isEndless", "isFinalActAvailable",
+            "hasEmeraldKey", "hasRubyKey", "hasSapphireKey"
+    ));
+    // Objects in these packages are shared between snapshots rather than copied
+    private static final String[] SHARED_PACKAGES = {
+            "java.", "javax.", "sun.", "com.badlogic.", "com.esotericsoftware.", "com.brashmonkey.", "com.google.",
+            "org.", "com.megacrit.cardcrawl.audio.", "com.megacrit.cardcrawl.localization.",
+            "com.megacrit.cardcrawl.screens.", "com.megacrit.cardcrawl.ui.", "com.megacrit.cardcrawl.vfx.",
+            "com.megacrit.cardcrawl.map.", "com.megacrit.cardcrawl.scenes.", "com.megacrit.cardcrawl.helpers.",
+            "com.megacrit.cardcrawl.metrics.", "com.megacrit.cardcrawl.saveAndContinue.",
+            "com.megacrit.cardcrawl.unlock."
+    };
+
+    private static int capacity = DEFAULT_CAPACITY;
+    private static final LinkedHashMap<String, StateSnapshot> snapshots = new LinkedHashMap<String, StateSnapshot>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, StateSnapshot> eldest) {
+            return size() > capacity;
+        }
+    };
+
+    private static final ClassValue<Field[]> instanceFields = new ClassValue<Field[]>() {
+        @Override
+        protected Field[] computeValue(Class<?> type) {
+            ArrayList<Field> fields = new ArrayList<>();
+            // A game class may extend a shared one, such as a library base class, and still declare state above it
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                if (isSharedPackage(c)) {
+                    continue;
+                }
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers()) && !holdsSharedObjects(field)) {
+                        field.setAccessible(true);
+                        fields.add(field);
+                    }
+                }
+            }
+            return fields.toArray(new Field[0]);
+        }
+    };
+
+    private static final ClassValue<Field[]> staticFields = new ClassValue<Field[]>() {
+        @Override
+        protected Field[] computeValue(Class<?> type) {
+            ArrayList<Field> fields = new ArrayList<>();
+            // Final fields are included, since the objects they hold may still change. Only their values are not set.
+            for (Field field : type.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) && isRunStatic(field)) {
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+            }
+            return fields.toArray(new Field[0]);
+        }
+    };
+
+    private static final ClassValue<Boolean> sharedTypes = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return isSharedPackage(type) && !RandomXS128.class.isAssignableFrom(type);
+        }
+    };
+
+    // The number of objects copied by the last snapshot, for the metrics
+    private static long lastSnapshotObjects = 0;
+
+    private final AbstractRoom room;
+    private final AbstractDungeon.CurrentScreen screen;
+    private final Object[][] staticValues = new Object[STATIC_ROOTS.length][];
+    // For each copied object: its field values, collection contents, map keys and values in turn, or array elements
+    private final IdentityHashMap<Object, Object[]> images = new IdentityHashMap<>();
+
+    private StateSnapshot() {
+        room = AbstractDungeon.getCurrRoom();
+        screen = AbstractDungeon.screen;
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        enqueue(room, pending);
+        for (int i = 0; i < STATIC_ROOTS.length; i++) {
+            Field[] fields = staticFields.get(STATIC_ROOTS[i]);
+            staticValues[i] = new Object[fields.length];
+            for (int j = 0; j < fields.length; j++) {
+                staticValues[i][j] = getFieldValue(fields[j], null);
+                enqueue(staticValues[i][j], pending);
+            }
+        }
+        while (!pending.isEmpty()) {
+            Object object = pending.pop();
+            Object[] values = copyValues(object);
+            images.put(object, values);
+            for (Object value : values) {
+                enqueue(value, pending);
+            }
+        }
+    }
+
+    /**
+     * Sets the number of snapshots that are kept. Beyond it, the least recently used snapshot is dropped.
+     */
+    static void setCapacity(int newCapacity) {
+        capacity = Math.max(1, newCapacity);
+    }
+
+    /**
+     * Takes a snapshot of the run, replacing any snapshot with the same name.
+     * @param name The name to restore the snapshot by
+     */
+    public static void save(String name) {
+        long startTime = System.nanoTime();
+        StateSnapshot snapshot = new StateSnapshot();
+        snapshots.put(name, snapshot);
+        lastSnapshotObjects = snapshot.images.size();
+        Metrics.recordTime(Metrics.Timer.SAVE_SNAPSHOT, startTime);
+    }
+
+    /**
+     * Restores the snapshot with the given name, which is kept so that it can be restored again.
+     * @param name The name the snapshot was saved with
+     * @throws InvalidCommandException If there is no such snapshot, or it was taken in another room or on another screen
+     */
+    public static void restore(String name) throws InvalidCommandException {
+        StateSnapshot snapshot = snapshots.get(name);
+        if (snapshot == null) {
+            throw new InvalidCommandException("No snapshot named " + name + ". Snapshots: " + snapshots.keySet());
+        }
+        if (snapshot.room != AbstractDungeon.getCurrRoom()) {
+            throw new InvalidCommandException("Snapshot " + name + " was taken in another room.");
+        }
+        if (snapshot.screen != AbstractDungeon.screen) {
+            throw new InvalidCommandException(String.format("Snapshot %s was taken on the %s screen, not %s.", name, snapshot.screen, AbstractDungeon.screen));
+        }
+        long startTime = System.nanoTime();
+        snapshot.restore();
+        Metrics.recordTime(Metrics.Timer.RESTORE_SNAPSHOT, startTime);
+    }
+
+    public static boolean hasSnapshots() {
+        return !snapshots.isEmpty();
+    }
+
+    public static void clear() {
+        snapshots.clear();
+    }
+
+    /**
+     * @return The number of objects copied by the last snapshot taken
+     */
+    public static long getLastSnapshotObjects() {
+        return lastSnapshotObjects;
+    }
+
+    private void restore() {
+        for (int i = 0; i < STATIC_ROOTS.length; i++) {
+            Field[] fields = staticFields.get(STATIC_ROOTS[i]);
+            for (int j = 0; j < fields.length; j++) {
+                if (!Modifier.isFinal(fields[j].getModifiers())) {
+                    setFieldValue(fields[j], null, staticValues[i][j]);
+                }
+            }
+        }
+        // Collections are filled after the fields of every object are back, since hashes may depend on them.
+        for (Map.Entry<Object, Object[]> image : images.entrySet()) {
+            Object object = image.getKey();
+            if (!(object instanceof Collection) && !(object instanceof Map)) {
+                restoreValues(object, image.getValue());
+            }
+        }
+        for (Map.Entry<Object, Object[]> image : images.entrySet()) {
+            Object object = image.getKey();
+            if (object instanceof Collection || object instanceof Map) {
+                restoreValues(object, image.getValue());
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object[] copyValues(Object object) {
+        if (object instanceof RandomXS128) {
+            RandomXS128 random = (RandomXS128) object;
+            return new Object[] {random.getState(0), random.getState(1)};
+        }
+        if (object instanceof Collection) {
+            return ((Collection<Object>) object).toArray();
+        }
+        if (object instanceof Map) {
+            Map<Object, Object> map = (Map<Object, Object>) object;
+            Object[] values = new Object[map.size() * 2];
+            int i = 0;
+            for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                values[i++] = entry.getKey();
+                values[i++] = entry.getValue();
+            }
+            return values;
+        }
+        if (object.getClass().isArray()) {
+            Object[] values = new Object[Array.getLength(object)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Array.get(object, i);
+            }
+            return values;
+        }
+        Field[] fields = instanceFields.get(object.getClass());
+        Object[] values = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            values[i] = getFieldValue(fields[i], object);
+        }
+        return values;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void restoreValues(Object object, Object[] values) {
+        if (object instanceof RandomXS128) {
+            ((RandomXS128) object).setState((Long) values[0], (Long) values[1]);
+        } else if (object instanceof Collection) {
+            Collection<Object> collection = (Collection<Object>) object;
+            collection.clear();
+            Collections.addAll(collection, values);
+        } else if (object instanceof Map) {
+            Map<Object, Object> map = (Map<Object, Object>) object;
+            map.clear();
+            for (int i = 0; i < values.length; i += 2) {
+                map.put(values[i], values[i + 1]);
+            }
+        } else if (object.getClass().isArray()) {
+            for (int i = 0; i < values.length; i++) {
+                Array.set(object, i, values[i]);
+            }
+        } else {
+            Field[] fields = instanceFields.get(object.getClass());
+            for (int i = 0; i < fields.length; i++) {
+                if (!Modifier.isFinal(fields[i].getModifiers())) {
+                    setFieldValue(fields[i], object, values[i]);
+                }
+            }
+        }
+    }
+
+    private void enqueue(Object value, ArrayDeque<Object> pending) {
+        if (value != null && !images.containsKey(value) && isCopied(value.getClass())) {
+            // Marks the object as seen until its values are copied
+            images.put(value, null);
+            pending.push(value);
+        }
+    }
+
+    /**
+     * Collections are copied only if they are the JDK's own, which can be emptied and refilled. Views and
+     * unmodifiable wrappers are nested classes, and are shared.
+     */
+    private static boolean isCopied(Class<?> type) {
+        if (type.isArray()) {
+            return true;
+        }
+        if (Enum.class.isAssignableFrom(type) || type.isPrimitive()) {
+            return false;
+        }
+        if (Collection.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type)) {
+            return type.getPackage() != null && type.getPackage().getName().equals("java.util")
+                    && type.getEnclosingClass() == null;
+        }
+        return !isShared(type);
+    }
+
+    private static boolean isShared(Class<?> type) {
+        return sharedTypes.get(type);
+    }
+
+    /**
+     * @return true if the static field holds a value, an RNG or an object of the run, rather than part of the UI or an
+     * option of the game
+     */
+    private static boolean isRunStatic(Field field) {
+        Class<?> declaringClass = field.getDeclaringClass();
+        if (declaringClass == Settings.class) {
+            return SETTINGS_ROOTS.contains(field.getName());
+        }
+        Class<?> type = field.getType();
+        return type.isPrimitive() || type.isEnum() || type == String.class || type == Random.class
+                || (type.getName().startsWith("java.lang.") && (Number.class.isAssignableFrom(type) || type == Boolean.class))
+                || STATIC_OBJECT_ROOTS.contains(declaringClass.getSimpleName() + "." + field.getName());
+    }
+
+    /**
+     * @return true if the field can only hold shared objects, or collections or arrays of them, which need not be
+     * copied
+     */
+    private static boolean holdsSharedObjects(Field field) {
+        Class<?> type = field.getType();
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        if (Collection.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type)) {
+            if (!(field.getGenericType() instanceof ParameterizedType)) {
+                return false;
+            }
+            for (Type argument : ((ParameterizedType) field.getGenericType()).getActualTypeArguments()) {
+                if (!(argument instanceof Class) || !isSharedElement((Class<?>) argument)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return isSharedElement(type);
+    }
+
+    private static boolean isSharedElement(Class<?> type) {
+        // Values in java.lang are shared too, but are kept in the copies of their fields and collections
+        return !type.isPrimitive() && !type.getName().startsWith("java.") && isShared(type);
+    }
+
+    private static boolean isSharedPackage(Class<?> type) {
+        String name = type.getName();
+        for (String prefix : SHARED_PACKAGES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Object getFieldValue(Field field, Object object) {
+        try {
+            return field.get(object);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static void setFieldValue(Field field, Object object, Object value) {
+        try {
+            field.set(object, value);
+        } catch (IllegalAccessException e) {
+            // Fields are made accessible when they are looked up, so this only happens to fields that cannot be set
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package communicationmod;
+
+import com.google.gson.stream.JsonWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the states sent to the external process and the commands received from it to compressed segment files, as
+ * a dataset of trajectories. Records are handed over through a bounded queue and written on this thread. When the
+ * queue is full, records are dropped and counted rather than making the game thread wait for the disk.
+ *
+ * A segment is a gzip or zlib stream named trajectory-Start-Number.gz or .zz, where Start is the time the writer was
+ * started in milliseconds. Uncompressed, a segment is:
+ * - The 8 ASCII bytes "CMTRAJ01".
+ * - Records, each a type byte, a 4-byte big-endian payload length, and the payload in UTF-8. The types are STATE (a
+ *   game state as JSON, as it was sent but never as a delta, so it leaves out what subscribe left out, and the map
+ *   when sendMapOnlyOnChange left it out), COMMAND (a command), RUN_START (the start command of a run, with its seed)
+ *   and RUN_END (JSON with "victory" and "score").
+ * - An INDEX record whose payload is JSON with the segment's "records", "bytes" (of payload), "runs" and "wins", and
+ *   "offsets", the offset of each record from the start of the segment.
+ * - The offset of the INDEX record, as 8 big-endian bytes.
+ * A new segment is started once one holds the configured number of uncompressed bytes. A segment that was not
+ * finished, because the game was killed, has no index, but its records can still be read in order.
+ */
+public class TrajectoryWriter implements Runnable {
+
+    public static final byte STATE = 1;
+    public static final byte COMMAND = 2;
+    public static final byte RUN_START = 3;
+    public static final byte RUN_END = 4;
+    public static final byte INDEX = (byte) 0xFF;
+
+    private static final byte[] MAGIC = "CMTRAJ01".getBytes(StandardCharsets.US_ASCII);
+    private static final int QUEUE_CAPACITY = 4096;
+    // Queued by stop() after everything else, to finish the last segment
+    private static final Record STOP = new Record((byte) 0, null, false);
+    private static final Logger logger = LogManager.getLogger(TrajectoryWriter.class.getName());
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final boolean gzip;
+    private final long startMillis = System.currentTimeMillis();
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong droppedRecords = new AtomicLong();
+
+    // Only used on this thread
+    private DataOutputStream out = null;
+    private Path segmentPath;
+    private int segmentNumber = 0;
+    private long offset;
+    private long[] offsets = new long[1024];
+    private int records;
+    private long payloadBytes;
+    private int runs;
+    private int wins;
+
+    private static class Record {
+        final byte type;
+        final OutgoingMessage payload;
+        final boolean victory;
+
+        Record(byte type, OutgoingMessage payload, boolean victory) {
+            this.type = type;
+            this.payload = payload;
+            this.victory = victory;
+        }
+    }
+
+    /**
+     * @param directory The directory to write segments to, which is created if needed
+     * @param segmentBytes The number of uncompressed bytes after which a new segment is started
+     * @param gzip Whether to write gzip segments, rather than zlib (deflate) ones
+     */
+    public TrajectoryWriter(String directory, long segmentBytes, boolean gzip) {
+        this.directory = Paths.get(directory).toAbsolutePath();
+        this.segmentBytes = segmentBytes;
+        this.gzip = gzip;
+    }
+
+    /**
+     * Queues a record without waiting. Called from the game thread.
+     * @param type STATE, COMMAND or RUN_START
+     * @param payload The state or command
+     */
+    public void record(byte type, OutgoingMessage payload) {
+        offer(new Record(type, payload, false));
+    }
+
+    /**
+     * Queues the end of a run. Called from the game thread.
+     */
+    public void recordRunEnd(boolean victory, int score) {
+        String payload = String.format("{\"victory\":%b,\"score\":%d}", victory, score);
+        offer(new Record(RUN_END, OutgoingMessage.of(payload), victory));
+    }
+
+    /**
+     * @return The number of records dropped because the queue was full
+     */
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    /**
+     * Makes the thread write out what is already queued, finish its segment and exit.
+     * @param timeoutMillis How long to wait for the queue to have room, since nothing else is being recorded by then
+     * @return false if the queue stayed full
+     */
+    public boolean stop(long timeoutMillis) throws InterruptedException {
+        return queue.offer(STOP, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void offer(Record record) {
+        if (!queue.offer(record)) {
+            droppedRecords.incrementAndGet();
+        }
+    }
+
+    public void run() {
+        logger.info("Writing trajectories to " + directory);
+        // The segment files are written through interruptible channels, so the thread is stopped with a record rather
+        // than an interrupt, which would cut the last segment short.
+        try {
+            Files.createDirectories(directory);
+            Record record;
+            while ((record = queue.take()) != STOP) {
+                write(record);
+            }
+            finishSegment();
+        } catch (InterruptedException e) {
+            logger.error("Trajectory thread interrupted. The last segment has no index.");
+        } catch (IOException e) {
+            logger.error("Could not write trajectories to " + directory + ". Shutting down trajectory thread.", e);
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        if (out == null) {
+            startSegment();
+        }
+        byte[] payload = record.payload.getText().getBytes(StandardCharsets.UTF_8);
+        if (records == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[records++] = offset;
+        out.writeByte(record.type);
+        out.writeInt(payload.length);
+        out.write(payload);
+        offset += 5 + payload.length;
+        payloadBytes += payload.length;
+        if (record.type == RUN_START) {
+            runs++;
+        } else if (record.type == RUN_END && record.victory) {
+            wins++;
+        }
+        if (offset >= segmentBytes) {
+            finishSegment();
+        }
+    }
+
+    private void startSegment() throws IOException {
+        segmentNumber++;
+        segmentPath = directory.resolve(String.format("trajectory-%d-%05d.%s", startMillis, segmentNumber, gzip ? "gz" : "zz"));
+        OutputStream file = Files.newOutputStream(segmentPath);
+        OutputStream compressed = gzip ? new GZIPOutputStream(file) : new DeflaterOutputStream(file);
+        // Headers are written a few bytes at a time, which the compressor would otherwise see one by one.
+        out = new DataOutputStream(new BufferedOutputStream(compressed, 64 * 1024));
+        out.write(MAGIC);
+        offset = MAGIC.length;
+        records = 0;
+        payloadBytes = 0;
+        runs = 0;
+        wins = 0;
+    }
+
+    private void finishSegment() throws IOException {
+        if (out == null) {
+            return;
+        }
+        StringWriter index = new StringWriter();
+        JsonWriter writer = StateCapture.newJsonWriter(index);
+        writer.beginObject();
+        writer.name("records").value(records);
+        writer.name("bytes").value(payloadBytes);
+        writer.name("runs").value(runs);
+        writer.name("wins").value(wins);
+        writer.name("offsets").beginArray();
+        for (int i = 0; i < records; i++) {
+            writer.value(offsets[i]);
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+        byte[] payload = index.toString().getBytes(StandardCharsets.UTF_8);
+        out.writeByte(INDEX);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeLong(offset);
+        out.close();
+        out = null;
+        logger.info(String.format("Finished trajectory segment %s: %d records, %d bytes, %d runs, %d wins",
+                segmentPath, records, payloadBytes, runs, wins));
+    }
+}
@@ -0,0 +1,21 @@
+package communicationmod.patches;
+
+import com.evacipated.cardcrawl.modthespire.lib.SpirePatch;
+import com.megacrit.cardcrawl.actions.AbstractGameAction;
+import communicationmod.FastMode;
+
+/**
+ * In fast mode, runs down the duration of an action as it ticks, so that the tick ends it. See
+ * FastMode.fastForwardAction() for the actions that are left alone.
+ */
+@SpirePatch(
+        clz=AbstractGameAction.class,
+        method="tickDuration"
+)
+public class AbstractGameActionTickPatch {
+    public static void Prefix(AbstractGameAction _instance) {
+        if (FastMode.isEnabled()) {
+            FastMode.fastForwardAction(_instance);
+        }
+    }
+}
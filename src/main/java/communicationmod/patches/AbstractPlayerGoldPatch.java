@@ -0,0 +1,28 @@
+package communicationmod.patches;
+
+import com.evacipated.cardcrawl.modthespire.lib.SpirePatch;
+import com.megacrit.cardcrawl.characters.AbstractPlayer;
+import communicationmod.GameStateListener;
+
+public class AbstractPlayerGoldPatch {
+
+    @SpirePatch(
+            clz= AbstractPlayer.class,
+            method="gainGold"
+    )
+    public static class GainGoldPatch {
+        public static void Postfix(AbstractPlayer _instance, int amount) {
+            GameStateListener.registerStateChange();
+        }
+    }
+
+    @SpirePatch(
+            clz= AbstractPlayer.class,
+            method="loseGold"
+    )
+    public static class LoseGoldPatch {
+        public static void Postfix(AbstractPlayer _instance, int goldAmount) {
+            GameStateListener.registerStateChange();
+        }
+    }
+}
@@ -11,6 +11,6 @@ import communicationmod.GameStateListener;
 )
 public class GameActionManagerTopPatch {
     public static void Postfix(GameActionManager _instance, AbstractGameAction _arg) {
-        GameStateListener.registerStateChange();
+        GameStateListener.signalActionQueued();
     }
 }
@@ -0,0 +1,28 @@
+package communicationmod.patches;
+
+import com.evacipated.cardcrawl.modthespire.lib.SpirePatch;
+import com.megacrit.cardcrawl.actions.GameActionManager;
+import communicationmod.GameStateListener;
+
+@SpirePatch(
+        clz= GameActionManager.class,
+        method="update"
+)
+public class GameActionManagerUpdatePatch {
+    private static GameActionManager.Phase lastPhase = null;
+
+    public static void Postfix(GameActionManager _instance) {
+        if (_instance.phase == lastPhase) {
+            return;
+        }
+        // The phase can go back to waiting on the player with cards still queued, which are picked up on a later update
+        if (_instance.phase == GameActionManager.Phase.WAITING_ON_USER
+                && !(_instance.actions.isEmpty() && _instance.preTurnActions.isEmpty() && _instance.cardQueue.isEmpty())) {
+            return;
+        }
+        lastPhase = _instance.phase;
+        if (lastPhase == GameActionManager.Phase.WAITING_ON_USER) {
+            GameStateListener.signalActionsDrained();
+        }
+    }
+}
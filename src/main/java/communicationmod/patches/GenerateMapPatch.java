@@ -0,0 +1,15 @@
+package communicationmod.patches;
+
+import com.evacipated.cardcrawl.modthespire.lib.SpirePatch;
+import com.megacrit.cardcrawl.dungeons.AbstractDungeon;
+import communicationmod.GameStateConverter;
+
+@SpirePatch(
+        clz=AbstractDungeon.class,
+        method="generateMap"
+)
+public class GenerateMapPatch {
+    public static void Postfix() {
+        GameStateConverter.invalidateMapCache();
+    }
+}
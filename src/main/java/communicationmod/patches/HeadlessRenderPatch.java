@@ -0,0 +1,41 @@
+package communicationmod.patches;
+
+import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.evacipated.cardcrawl.modthespire.lib.SpirePatch;
+import com.evacipated.cardcrawl.modthespire.lib.SpireReturn;
+import com.megacrit.cardcrawl.dungeons.AbstractDungeon;
+import com.megacrit.cardcrawl.screens.mainMenu.MainMenuScreen;
+import communicationmod.CommunicationMod;
+
+/**
+ * Skips drawing the dungeon and the main menu in headless mode. CardCrawlGame.render is left alone because it is also
+ * what calls CardCrawlGame.update, so the game keeps ticking with nothing drawn.
+ */
+public class HeadlessRenderPatch {
+
+    @SpirePatch(
+            clz=AbstractDungeon.class,
+            method="render"
+    )
+    public static class DungeonRenderPatch {
+        public static SpireReturn<Void> Prefix(AbstractDungeon _instance, SpriteBatch sb) {
+            if (CommunicationMod.isHeadless()) {
+                return SpireReturn.Return();
+            }
+            return SpireReturn.Continue();
+        }
+    }
+
+    @SpirePatch(
+            clz=MainMenuScreen.class,
+            method="render"
+    )
+    public static class MainMenuRenderPatch {
+        public static SpireReturn<Void> Prefix(MainMenuScreen _instance, SpriteBatch sb) {
+            if (CommunicationMod.isHeadless()) {
+                return SpireReturn.Return();
+            }
+            return SpireReturn.Continue();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package communicationmod.patches;
+
+import com.evacipated.cardcrawl.modthespire.lib.SpirePatch;
+import com.megacrit.cardcrawl.dungeons.AbstractDungeon;
+import com.megacrit.cardcrawl.saveAndContinue.SaveFile;
+import communicationmod.GameStateListener;
+
+@SpirePatch(
+        clz= AbstractDungeon.class,
+        method="nextRoomTransition",
+        paramtypez = {SaveFile.class}
+)
+public class NextRoomTransitionPatch {
+    public static void Postfix(AbstractDungeon _instance, SaveFile _saveFile) {
+        GameStateListener.signalRoomTransition();
+    }
+}
@@ -0,0 +1,57 @@
+package communicationmod.patches;
+
+import com.evacipated.cardcrawl.modthespire.lib.SpirePatch;
+import com.megacrit.cardcrawl.core.CardCrawlGame;
+import communicationmod.CommunicationMod;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Runs extra game updates after each frame is drawn, up to the configured number of updates per frame. Every update
+ * goes through the mod's update hooks, so each one can execute a command and check whether the state is stable.
+ * The extra updates stop as soon as the game is ready for a command that has not arrived yet.
+ */
+@SpirePatch(
+        clz=CardCrawlGame.class,
+        method="render"
+)
+public class UpdateMultiplierPatch {
+
+    private static final Logger logger = LogManager.getLogger(UpdateMultiplierPatch.class.getName());
+    private static final Method UPDATE_METHOD = findUpdateMethod();
+
+    public static void Postfix(CardCrawlGame _instance) {
+        if (UPDATE_METHOD == null || CardCrawlGame.mode != CardCrawlGame.GameMode.GAMEPLAY) {
+            return;
+        }
+        for (int i = 1; i < CommunicationMod.getUpdatesPerFrame() && CommunicationMod.shouldRunExtraUpdate(); i++) {
+            try {
+                UPDATE_METHOD.invoke(_instance);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private static Method findUpdateMethod() {
+        try {
+            Method method = CardCrawlGame.class.getDeclaredMethod("update");
+            method.setAccessible(true);
+            return method;
+        } catch (NoSuchMethodException e) {
+            logger.error("Could not find CardCrawlGame.update. Only one update will be run per frame.");
+            return null;
+        }
+    }
+}